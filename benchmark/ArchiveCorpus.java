@@ -0,0 +1,143 @@
+package com.msci.moslem.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Synthetic, reproducible file trees for the archive benchmarks. The same
+ * layout, content and seed always give the same files.
+ */
+public class ArchiveCorpus {
+
+    /**
+     * How the corpus is cut in files.
+     */
+    public enum Layout {
+        /**
+         * 2000 files of 1 to 32 KB in 40 directories, about 32 MB. Per entry
+         * costs dominate.
+         */
+        SMALL_FILES,
+        /**
+         * 3 files of 32 MB. Streaming throughput dominates.
+         */
+        LARGE_FILES
+    }
+
+    /**
+     * What the files contain.
+     */
+    public enum Content {
+        /**
+         * Words of a few thousand word vocabulary, deflates to about a third.
+         */
+        TEXT,
+        /**
+         * Random bytes, does not deflate at all, like images or archives.
+         */
+        BINARY
+    }
+
+    private static final int SMALL_FILES = 2000;
+    private static final int SMALL_FILES_PER_DIR = 50;
+    private static final int LARGE_FILES = 3;
+    private static final int LARGE_FILE_SIZE = 32 * 1024 * 1024;
+    private static final int VOCABULARY = 4096;
+
+    private final Layout layout;
+    private final Content content;
+    private final Random random;
+    private final byte[][] words;
+
+    public ArchiveCorpus(Layout layout, Content content, long seed) {
+        this.layout = layout;
+        this.content = content;
+        this.random = new Random(seed);
+
+        words = new byte[VOCABULARY][];
+        for (int i = 0; i < VOCABULARY; i++) {
+            byte[] word = new byte[2 + random.nextInt(9)];
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (byte) ('a' + random.nextInt(26));
+            }
+            words[i] = word;
+        }
+    }
+
+    /**
+     * Write the corpus into a directory.
+     *
+     * @return total size of the files, in bytes.
+     */
+    public long write(File dir) throws IOException {
+        long total = 0;
+        if (layout == Layout.SMALL_FILES) {
+            for (int i = 0; i < SMALL_FILES; i++) {
+                File subdir = new File(dir, "dir" + (i / SMALL_FILES_PER_DIR));
+                subdir.mkdirs();
+                int size = 1024 + random.nextInt(31 * 1024);
+                writeFile(new File(subdir, "file" + i + extension()), size);
+                total += size;
+            }
+        } else {
+            for (int i = 0; i < LARGE_FILES; i++) {
+                writeFile(new File(dir, "large" + i + extension()), LARGE_FILE_SIZE);
+                total += LARGE_FILE_SIZE;
+            }
+        }
+        return total;
+    }
+
+    private String extension() {
+        return content == Content.TEXT ? ".txt" : ".bin";
+    }
+
+    private void writeFile(File file, int size) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            byte[] block = new byte[Math.min(size, 64 * 1024)];
+            int written = 0;
+            while (written < size) {
+                int length = Math.min(block.length, size - written);
+                if (content == Content.TEXT) {
+                    fillText(block, length);
+                } else {
+                    random.nextBytes(block);
+                }
+                out.write(block, 0, length);
+                written += length;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Lines of words, frequent words picked far more often than rare ones,
+     * as in natural language.
+     */
+    private void fillText(byte[] block, int length) {
+        int n = 0;
+        int line = 0;
+        while (n < length) {
+            double r = random.nextDouble();
+            byte[] word = words[(int) (VOCABULARY * r * r * r)];
+            for (int i = 0; i < word.length && n < length; i++) {
+                block[n++] = word[i];
+            }
+            if (n < length) {
+                line += word.length + 1;
+                if (line > 72) {
+                    block[n++] = '\n';
+                    line = 0;
+                } else {
+                    block[n++] = ' ';
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.msci.moslem.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Scratch directories for the benchmarks.
+ */
+public final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Create an empty directory under java.io.tmpdir.
+     */
+    public static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Can not create directory " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Format of a result file, from its extension: csv, scsv, tex or txt,
+     * JSON otherwise.
+     */
+    public static ResultFormatType resultFormat(String file) {
+        String name = file.toLowerCase(Locale.ENGLISH);
+        if (name.endsWith(".csv")) {
+            return ResultFormatType.CSV;
+        } else if (name.endsWith(".scsv")) {
+            return ResultFormatType.SCSV;
+        } else if (name.endsWith(".tex")) {
+            return ResultFormatType.LATEX;
+        } else if (name.endsWith(".txt")) {
+            return ResultFormatType.TEXT;
+        }
+        return ResultFormatType.JSON;
+    }
+
+    /**
+     * Delete a file or a directory with everything in it.
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
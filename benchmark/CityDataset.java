@@ -0,0 +1,121 @@
+package com.msci.moslem.benchmark;
+
+import com.msci.moslem.bean.CityBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic, reproducible city datasets for the spatial index benchmarks.
+ * The same seed always gives the same cities and query points.
+ */
+public class CityDataset {
+
+    /**
+     * How cities are spread over the globe.
+     */
+    public enum Density {
+        /**
+         * Uniform over the sphere.
+         */
+        UNIFORM,
+        /**
+         * Gaussian clusters around a few hundred centers, like real cities.
+         */
+        CLUSTERED,
+        /**
+         * A handful of small islands, most of the globe is empty. Worst case
+         * for nearest lookups.
+         */
+        SPARSE
+    }
+
+    private final Density density;
+    private final Random random;
+    private final double[] centerLats, centerLons;
+    private final double spread;
+
+    public CityDataset(Density density, long seed) {
+        this.density = density;
+        this.random = new Random(seed);
+
+        int centers = density == Density.SPARSE ? 8 : 300;
+        spread = density == Density.SPARSE ? 0.2 : 1.5;
+        centerLats = new double[centers];
+        centerLons = new double[centers];
+        for (int i = 0; i < centers; i++) {
+            centerLats[i] = uniformLatitude() * 0.8;
+            centerLons[i] = uniformLongitude();
+        }
+    }
+
+    /**
+     * Generate cities, with ids from 0 to size - 1.
+     */
+    public List<CityBean> cities(int size) {
+        List<CityBean> cities = new ArrayList<CityBean>(size);
+        for (int i = 0; i < size; i++) {
+            CityBean city = new CityBean();
+            city.setId(i);
+            if (density == Density.UNIFORM) {
+                city.setLatitude(uniformLatitude());
+                city.setLongitude(uniformLongitude());
+            } else {
+                int center = random.nextInt(centerLats.length);
+                city.setLatitude(clampLatitude(centerLats[center]
+                        + random.nextGaussian() * spread));
+                city.setLongitude(wrapLongitude(centerLons[center]
+                        + random.nextGaussian() * spread));
+            }
+            cities.add(city);
+        }
+        return cities;
+    }
+
+    /**
+     * Query points following the distribution of the cities: lat0, lon0,
+     * lat1, lon1, ...
+     */
+    public double[] nearbyPoints(int count) {
+        double[] points = new double[count * 2];
+        for (CityBean city : cities(count)) {
+            int i = (int) city.getId();
+            // A few miles off the city itself.
+            points[2 * i] = clampLatitude(city.getLatitude() + random.nextGaussian() * 0.05);
+            points[2 * i + 1] = wrapLongitude(city.getLongitude() + random.nextGaussian() * 0.05);
+        }
+        return points;
+    }
+
+    /**
+     * Query points uniform over the globe. With SPARSE density, nearly all of
+     * them fall far away from any city.
+     */
+    public double[] remotePoints(int count) {
+        double[] points = new double[count * 2];
+        for (int i = 0; i < count; i++) {
+            points[2 * i] = uniformLatitude();
+            points[2 * i + 1] = uniformLongitude();
+        }
+        return points;
+    }
+
+    private double uniformLatitude() {
+        return Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+    }
+
+    private double uniformLongitude() {
+        return random.nextDouble() * 360 - 180;
+    }
+
+    private static double clampLatitude(double lat) {
+        return Math.max(-90, Math.min(90, lat));
+    }
+
+    private static double wrapLongitude(double lon) {
+        while (lon >= 180) lon -= 360;
+        while (lon < -180) lon += 360;
+        return lon;
+    }
+}
@@ -0,0 +1,104 @@
+package com.msci.moslem.benchmark;
+
+import com.msci.moslem.bean.CityBean;
+import com.msci.moslem.util.CityLuceneHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing throughput of {@link CityLuceneHelper}: one city per call with
+ * addToIndex(), and bulk loading with addAll().
+ * <p/>
+ * Run with {@link #main(String[])}, which adds the GC profiler to report
+ * allocation rate, or through the JMH runner of the host build with
+ * "-prof gc".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CityIndexBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"UNIFORM", "CLUSTERED", "SPARSE"})
+    public CityDataset.Density density;
+
+    /**
+     * Cities per commit, 1 is the original commit-per-city behaviour.
+     */
+    @Param({"1", "1000"})
+    public int commitBatchSize;
+
+    private CityLuceneHelper helper;
+    private File dir;
+    private List<CityBean> cities;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        cities = new CityDataset(density, 42).cities(100000);
+        dir = BenchmarkSupport.createTempDir("city-index");
+        helper = CityLuceneHelper.getInstance();
+        helper.setPath(dir.getPath());
+        helper.setCommitBatchSize(commitBatchSize);
+        next = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        helper.close();
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public void addToIndex() throws IOException {
+        helper.addToIndex(nextCity());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void addAll() throws IOException {
+        int from = next % (cities.size() - BATCH_SIZE);
+        next += BATCH_SIZE;
+        helper.addAll(cities.subList(from, from + BATCH_SIZE));
+    }
+
+    private CityBean nextCity() {
+        CityBean city = cities.get(next % cities.size());
+        next++;
+        return city;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CityIndexBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
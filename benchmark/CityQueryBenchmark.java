@@ -0,0 +1,180 @@
+package com.msci.moslem.benchmark;
+
+import com.msci.moslem.bean.CityBean;
+import com.msci.moslem.util.CityLuceneHelper;
+import com.msci.moslem.util.InMemoryCityEngine;
+import com.msci.moslem.util.NearbyCity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query latency of {@link CityLuceneHelper} and {@link InMemoryCityEngine}:
+ * radius queries across radii, and nearest lookups from points near cities
+ * and from remote points (the worst case with the SPARSE dataset), against
+ * the radius doubling lookup they replace.
+ * <p/>
+ * Run with {@link #main(String[])}, which adds the GC profiler to report
+ * allocation rate, or through the JMH runner of the host build with
+ * "-prof gc".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CityQueryBenchmark {
+
+    private static final int POINTS = 4096;
+
+    @Param({"UNIFORM", "CLUSTERED", "SPARSE"})
+    public CityDataset.Density density;
+
+    @Param({"10000", "200000"})
+    public int size;
+
+    @Param({"1", "10", "100"})
+    public double miles;
+
+    private CityLuceneHelper helper;
+    private InMemoryCityEngine engine;
+    private File dir;
+    private double[] nearbyPoints, remotePoints;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        CityDataset dataset = new CityDataset(density, 42);
+        List<CityBean> cities = dataset.cities(size);
+        nearbyPoints = dataset.nearbyPoints(POINTS);
+        remotePoints = dataset.remotePoints(POINTS);
+
+        dir = BenchmarkSupport.createTempDir("city-query");
+        helper = CityLuceneHelper.getInstance();
+        helper.setPath(dir.getPath());
+        helper.setCommitBatchSize(10000);
+        helper.addAll(cities);
+        helper.flush();
+        helper.refresh();
+        engine = helper.buildInMemoryEngine();
+        next = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        helper.close();
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public List<CityBean> radius() throws IOException {
+        int i = nextPoint();
+        return helper.getNearbyCities(nearbyPoints[i], nearbyPoints[i + 1], miles);
+    }
+
+    @Benchmark
+    public List<CityBean> radiusInMemory() throws IOException {
+        int i = nextPoint();
+        return engine.getNearbyCities(nearbyPoints[i], nearbyPoints[i + 1], miles);
+    }
+
+    @Benchmark
+    public CityBean nearest() throws IOException {
+        int i = nextPoint();
+        return helper.getNearbyCities(nearbyPoints[i], nearbyPoints[i + 1]);
+    }
+
+    @Benchmark
+    public CityBean nearestRemote() throws IOException {
+        int i = nextPoint();
+        return helper.getNearbyCities(remotePoints[i], remotePoints[i + 1]);
+    }
+
+    /**
+     * The nearest lookup as it was before findNearest: radius queries with a
+     * doubling radius until one finds a city, baseline of {@link #nearest()}.
+     */
+    @Benchmark
+    public CityBean nearestRadiusDoubling() throws IOException {
+        int i = nextPoint();
+        return radiusDoubling(nearbyPoints[i], nearbyPoints[i + 1]);
+    }
+
+    @Benchmark
+    public CityBean nearestRemoteRadiusDoubling() throws IOException {
+        int i = nextPoint();
+        return radiusDoubling(remotePoints[i], remotePoints[i + 1]);
+    }
+
+    @Benchmark
+    public List<NearbyCity> nearest10() throws IOException {
+        int i = nextPoint();
+        return helper.findNearest(nearbyPoints[i], nearbyPoints[i + 1], 10);
+    }
+
+    @Benchmark
+    public long nearestInMemory() {
+        int i = nextPoint();
+        return engine.findNearestId(nearbyPoints[i], nearbyPoints[i + 1]);
+    }
+
+    @Benchmark
+    public long nearestRemoteInMemory() {
+        int i = nextPoint();
+        return engine.findNearestId(remotePoints[i], remotePoints[i + 1]);
+    }
+
+    private CityBean radiusDoubling(double lat, double lon) throws IOException {
+        List<CityBean> cities = null;
+        for (double distance = 1; distance < 20E3; distance *= 2) {
+            cities = helper.getNearbyCities(lat, lon, distance);
+            if (!cities.isEmpty()) {
+                break;
+            }
+        }
+        CityBean nearest = null;
+        double nearestDistance = 0;
+        for (CityBean city : cities) {
+            double distance = helper.distance(lat, lon, city);
+            if (nearest == null || distance < nearestDistance) {
+                nearest = city;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    private int nextPoint() {
+        next = (next + 1) % POINTS;
+        return 2 * next;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CityQueryBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
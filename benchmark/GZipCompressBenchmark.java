@@ -0,0 +1,146 @@
+package com.msci.moslem.benchmark;
+
+import com.msci.moslem.util.GZipHelper;
+import net.lingala.zip4j.exception.ZipException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression throughput of each {@link GZipHelper} path, with and without
+ * encryption, over the {@link ArchiveCorpus} corpora.
+ * <p/>
+ * Besides ops/s, "megabytes" is the input compressed per second, in MB/s.
+ * Run with {@link #main(String[])}, which adds the GC profiler for
+ * allocation rates and {@link PeakMemoryProfiler} for peak heap use, and
+ * exports the results to the file given as first argument:
+ * <pre>
+ * java ... GZipCompressBenchmark results/compress-2013-06-01.json
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GZipCompressBenchmark {
+
+    private static final String PASSWORD = "benchmark";
+
+    /**
+     * A compression method of GZipHelper, encrypted or not. Paths that
+     * always encrypt have no plain variant.
+     */
+    public enum Path {
+        COMPRESS(false),
+        COMPRESS_ENCRYPTED(true),
+        OUTPUT_STREAM(false),
+        OUTPUT_STREAM_ENCRYPTED(true),
+        ENCRYPT_OUTPUT_STREAM(true),
+        PARALLEL(false),
+        PARALLEL_ENCRYPTED(true);
+
+        private final boolean encrypted;
+
+        Path(boolean encrypted) {
+            this.encrypted = encrypted;
+        }
+
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+    }
+
+    @Param
+    public Path path;
+
+    @Param
+    public ArchiveCorpus.Layout layout;
+
+    @Param
+    public ArchiveCorpus.Content content;
+
+    private File dir;
+    private File input;
+    private File output;
+    private long size;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("gzip-compress");
+        input = new File(dir, "input");
+        input.mkdirs();
+        output = new File(dir, "output.zip");
+        size = new ArchiveCorpus(layout, content, 42).write(input);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.delete(dir);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() {
+        output.delete();
+    }
+
+    @Benchmark
+    public void compress(ArchiveThroughput throughput) throws IOException, ZipException {
+        GZipHelper helper = GZipHelper.getInstance();
+        helper.setInputPath(input.getPath());
+        helper.setOutputPath(output.getPath());
+        if (path.isEncrypted()) {
+            helper.setEncrypted(true);
+            helper.setPassword(PASSWORD);
+        }
+
+        switch (path) {
+            case COMPRESS:
+            case COMPRESS_ENCRYPTED:
+                helper.compress();
+                break;
+            case OUTPUT_STREAM:
+            case OUTPUT_STREAM_ENCRYPTED:
+                helper.compressWithOutputStream();
+                break;
+            case ENCRYPT_OUTPUT_STREAM:
+                helper.compressWithEncrypOutputStream();
+                break;
+            default:
+                helper.compressParallel();
+                break;
+        }
+        throughput.add(size);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(GZipCompressBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .addProfiler(PeakMemoryProfiler.class);
+        if (args.length > 0) {
+            options.result(args[0]).resultFormat(BenchmarkSupport.resultFormat(args[0]));
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,160 @@
+package com.msci.moslem.benchmark;
+
+import com.msci.moslem.util.GZipHelper;
+import net.lingala.zip4j.exception.ZipException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction throughput of each {@link GZipHelper} path, with and without
+ * encryption, over the {@link ArchiveCorpus} corpora. Each path reads an
+ * archive made by its counterpart: extract() one made by compress(),
+ * extractWithDecryptOutputStream() one made by
+ * compressWithEncrypOutputStream(), extractParallel() one made by
+ * compressParallel().
+ * <p/>
+ * Besides ops/s, "megabytes" is the output extracted per second, in MB/s.
+ * Run with {@link #main(String[])} like {@link GZipCompressBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GZipExtractBenchmark {
+
+    private static final String PASSWORD = "benchmark";
+
+    /**
+     * An extraction method of GZipHelper, encrypted or not. Paths that
+     * always decrypt have no plain variant.
+     */
+    public enum Path {
+        EXTRACT(false),
+        EXTRACT_ENCRYPTED(true),
+        DECRYPT_OUTPUT_STREAM(true),
+        PARALLEL(false),
+        PARALLEL_ENCRYPTED(true);
+
+        private final boolean encrypted;
+
+        Path(boolean encrypted) {
+            this.encrypted = encrypted;
+        }
+
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+    }
+
+    @Param
+    public Path path;
+
+    @Param
+    public ArchiveCorpus.Layout layout;
+
+    @Param
+    public ArchiveCorpus.Content content;
+
+    private File dir;
+    private File archive;
+    private File output;
+    private long size;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ZipException {
+        dir = BenchmarkSupport.createTempDir("gzip-extract");
+        File input = new File(dir, "input");
+        input.mkdirs();
+        size = new ArchiveCorpus(layout, content, 42).write(input);
+
+        archive = new File(dir, "input.zip");
+        output = new File(dir, "output");
+        GZipHelper helper = newHelper(input.getPath(), archive.getPath());
+        switch (path) {
+            case EXTRACT:
+            case EXTRACT_ENCRYPTED:
+                helper.compress();
+                break;
+            case DECRYPT_OUTPUT_STREAM:
+                helper.compressWithEncrypOutputStream();
+                break;
+            default:
+                helper.compressParallel();
+                break;
+        }
+        BenchmarkSupport.delete(input);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.delete(dir);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() {
+        BenchmarkSupport.delete(output);
+    }
+
+    @Benchmark
+    public void extract(ArchiveThroughput throughput) throws IOException, ZipException {
+        // extractWithDecryptOutputStream() appends entry names to the path.
+        GZipHelper helper = newHelper(archive.getPath(), output.getPath() + File.separator);
+        switch (path) {
+            case EXTRACT:
+            case EXTRACT_ENCRYPTED:
+                helper.extract();
+                break;
+            case DECRYPT_OUTPUT_STREAM:
+                helper.extractWithDecryptOutputStream();
+                break;
+            default:
+                helper.extractParallel();
+                break;
+        }
+        throughput.add(size);
+    }
+
+    private GZipHelper newHelper(String inputPath, String outputPath) {
+        GZipHelper helper = GZipHelper.getInstance();
+        helper.setInputPath(inputPath);
+        helper.setOutputPath(outputPath);
+        if (path.isEncrypted()) {
+            helper.setEncrypted(true);
+            helper.setPassword(PASSWORD);
+        }
+        return helper;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(GZipExtractBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .addProfiler(PeakMemoryProfiler.class);
+        if (args.length > 0) {
+            options.result(args[0]).resultFormat(BenchmarkSupport.resultFormat(args[0]));
+        }
+        new Runner(options.build()).run();
+    }
+}
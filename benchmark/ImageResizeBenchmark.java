@@ -0,0 +1,106 @@
+package com.msci.moslem.benchmark;
+
+import com.msci.moslem.util.ImageHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and peak heap use of {@link ImageHelper#resizeWithScale()}, a 0.5
+ * scale of a 48 megapixel JPEG, decoded at full resolution or subsampled.
+ * Subsampled, the source is decoded at the output size, a quarter of the
+ * pixels, and peak heap drops accordingly.
+ * <p/>
+ * Run with {@link #main(String[])}, which adds the GC profiler and
+ * {@link PeakMemoryProfiler}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ImageResizeBenchmark {
+
+    private static final int WIDTH = 8000;
+    private static final int HEIGHT = 6000;
+
+    @Param({"false", "true"})
+    public boolean subsampling;
+
+    private File dir;
+    private ImageHelper helper;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("image-resize");
+        File input = new File(dir, "input.jpg");
+        writeImage(input);
+
+        helper = ImageHelper.getInstance();
+        helper.setInput(input.getPath());
+        helper.setOutput(new File(dir, "output.png").getPath());
+        helper.setSubsampling(subsampling);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public void resizeWithScale() throws IOException {
+        helper.resizeWithScale();
+    }
+
+    /**
+     * Photo-like image: overlapping discs of random colors.
+     */
+    private static void writeImage(File file) throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        Random random = new Random(42);
+        for (int i = 0; i < 3000; i++) {
+            g.setColor(new Color(random.nextInt()));
+            g.fillOval(random.nextInt(WIDTH), random.nextInt(HEIGHT),
+                    50 + random.nextInt(400), 50 + random.nextInt(400));
+        }
+        g.dispose();
+        ImageIO.write(image, "jpg", file);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(ImageResizeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .addProfiler(PeakMemoryProfiler.class);
+        if (args.length > 0) {
+            options.result(args[0]).resultFormat(BenchmarkSupport.resultFormat(args[0]));
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,76 @@
+package com.msci.moslem.benchmark;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import util.PasswordGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Salts per second of {@link PasswordGenerator} against the former
+ * RandomStringUtils.randomAlphanumeric(), on one thread and on as many
+ * threads as processors: the per-thread generator should scale with them,
+ * the shared Random of RandomStringUtils does not. Run with
+ * {@link #main(String[])}, which exports the results to the file given as
+ * first argument.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordGeneratorBenchmark {
+
+    private static final int LENGTH = 16;
+
+    private final PasswordGenerator generator = new PasswordGenerator(PasswordGenerator.ALPHANUMERIC, LENGTH);
+
+    @Benchmark
+    @Threads(1)
+    public String legacy() {
+        return RandomStringUtils.randomAlphanumeric(LENGTH);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String legacyAllThreads() {
+        return RandomStringUtils.randomAlphanumeric(LENGTH);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String generator() {
+        return generator.next();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String generatorAllThreads() {
+        return generator.next();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(PasswordGeneratorBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class);
+        if (args.length > 0) {
+            options.result(args[0]).resultFormat(BenchmarkSupport.resultFormat(args[0]));
+        }
+        new Runner(options.build()).run();
+    }
+}
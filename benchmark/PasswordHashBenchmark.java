@@ -0,0 +1,149 @@
+package com.msci.moslem.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.core.token.Sha512DigestUtils;
+import util.PasswordHasher;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes per second of {@link PasswordHasher} against the former
+ * PasswordUtil.generateHash(), Sha512DigestUtils.shaHex(password + salt).
+ * <p/>
+ * The single hash benchmarks run on as many threads as processors, as in a
+ * login storm. The batch ones hash or verify {@link #BATCH} credentials per
+ * operation, as in a migration. Run with {@link #main(String[])}, which adds
+ * the GC profiler for allocation rates and exports the results to the file
+ * given as first argument.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordHashBenchmark {
+
+    public static final int BATCH = 10000;
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    private final PasswordHasher hasher = new PasswordHasher();
+    private char[][] passwords;
+    private String[] passwordStrings;
+    private String[] salts;
+    private String[] hashes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        passwords = new char[BATCH][];
+        passwordStrings = new String[BATCH];
+        salts = new String[BATCH];
+        hashes = new String[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            passwordStrings[i] = random(random, 8 + random.nextInt(8));
+            passwords[i] = passwordStrings[i].toCharArray();
+            salts[i] = random(random, 16);
+            hashes[i] = Sha512DigestUtils.shaHex(passwordStrings[i] + salts[i]);
+        }
+    }
+
+    /**
+     * Index of the next credential of a thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+
+        int next() {
+            next = next + 1 < BATCH ? next + 1 : 0;
+            return next;
+        }
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String legacy(Cursor cursor) {
+        int i = cursor.next();
+        return Sha512DigestUtils.shaHex(passwordStrings[i] + salts[i]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String hashString(Cursor cursor) {
+        int i = cursor.next();
+        return hasher.hash(passwordStrings[i], salts[i]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String hashChars(Cursor cursor) {
+        int i = cursor.next();
+        return hasher.hash(passwords[i], salts[i]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean verifyLegacy(Cursor cursor) {
+        int i = cursor.next();
+        return Sha512DigestUtils.shaHex(passwordStrings[i] + salts[i]).equals(hashes[i]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean verify(Cursor cursor) {
+        int i = cursor.next();
+        return hasher.verify(passwords[i], salts[i], hashes[i]);
+    }
+
+    // Uses all processors itself.
+    @Benchmark
+    @Threads(1)
+    public String[] hashAll() {
+        return hasher.hashAll(passwords, salts);
+    }
+
+    // Uses all processors itself.
+    @Benchmark
+    @Threads(1)
+    public boolean[] verifyAll() {
+        return hasher.verifyAll(passwords, salts, hashes);
+    }
+
+    private static String random(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(PasswordHashBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class);
+        if (args.length > 0) {
+            options.result(args[0]).resultFormat(BenchmarkSupport.resultFormat(args[0]));
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,56 @@
+package com.msci.moslem.benchmark;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * JMH profiler reporting the peak heap use of each iteration, as
+ * "peak.heap" in MB. The peaks of the heap pools are reset before each
+ * iteration and summed after it, which slightly overestimates as pools do
+ * not all peak at the same time. Garbage not yet collected counts, so it is
+ * an upper bound of what the benchmark needs.
+ * <p/>
+ * Add with addProfiler(PeakMemoryProfiler.class), or "-prof
+ * com.msci.moslem.benchmark.PeakMemoryProfiler".
+ */
+public class PeakMemoryProfiler implements InternalProfiler {
+
+    @Override
+    public String getDescription() {
+        return "Peak heap use per iteration";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    @Override
+    public Collection<? extends Result<?>> afterIteration(BenchmarkParams benchmarkParams,
+                                                          IterationParams iterationParams,
+                                                          IterationResult result) {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return Collections.singletonList(new ScalarResult("peak.heap",
+                peak / (1024.0 * 1024.0), "MB", AggregationPolicy.MAX));
+    }
+}
@@ -0,0 +1,34 @@
+package com.msci.moslem.util;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A running archive job. Completes with the final progress of the job, or
+ * exceptionally with the IOException that stopped it.
+ * <p/>
+ * {@link #cancel(boolean)} stops the job at the next chunk or entry. A
+ * cancelled compression deletes its partial archive, a cancelled extraction
+ * leaves the entries already written.
+ */
+public class ArchiveJob extends CompletableFuture<ArchiveProgress> {
+
+    private final ArchiveProgressTracker tracker;
+
+    ArchiveJob(ArchiveProgressTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * @return progress so far, same as the last one pushed to the listener
+     *         or more recent.
+     */
+    public ArchiveProgress getProgress() {
+        return tracker.snapshot(isDone() && !isCompletedExceptionally());
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        tracker.cancel();
+        return super.cancel(mayInterruptIfRunning);
+    }
+}
@@ -0,0 +1,219 @@
+package com.msci.moslem.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sidecar of an archive, listing what each file entry was made from: size,
+ * last modification time and SHA-256 of the file, plus the CRC of the entry.
+ * {@link ParallelZipCompressor#update(File, File)} reads it to find the files
+ * that did not change since the archive was made.
+ * <p/>
+ * Stored as UTF-8 text next to the archive, one entry per line:
+ * <pre>
+ * size TAB time TAB crc TAB sha256 TAB name
+ * </pre>
+ * Not thread-safe.
+ */
+public class ArchiveManifest {
+
+    private static final String HEADER = "# ArchiveManifest 1";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * What a file entry was made from.
+     */
+    public static class Record {
+
+        private final long size;
+        private final long time;
+        private final long crc;
+        private final String digest;
+
+        public Record(long size, long time, long crc, String digest) {
+            this.size = size;
+            this.time = time;
+            this.crc = crc;
+            this.digest = digest;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return last modification time of the file, in milliseconds.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return CRC-32 of the entry, as in the archive.
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return SHA-256 of the file, in lowercase hex.
+         */
+        public String getDigest() {
+            return digest;
+        }
+    }
+
+    private final Map<String, Record> records = new LinkedHashMap<String, Record>();
+
+    /**
+     * @return sidecar of an archive: its path plus ".manifest".
+     */
+    public static File fileOf(File archive) {
+        return new File(archive.getPath() + ".manifest");
+    }
+
+    /**
+     * Read a manifest written by {@link #save(File)}.
+     *
+     * @throws IOException failed to read, or not a manifest.
+     */
+    public static ArchiveManifest load(File file) throws IOException {
+        ArchiveManifest manifest = new ArchiveManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Not an archive manifest: " + file);
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 5);
+                if (fields.length != 5) {
+                    throw new IOException("Corrupt archive manifest: " + file);
+                }
+                try {
+                    manifest.put(fields[4], new Record(Long.parseLong(fields[0]),
+                            Long.parseLong(fields[1]), Long.parseLong(fields[2], 16), fields[3]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Corrupt archive manifest: " + file, e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Write the manifest, replacing the file only once it is complete.
+     */
+    public void save(File file) throws IOException {
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        boolean done = false;
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(temp), "UTF-8"));
+            try {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (Map.Entry<String, Record> e : records.entrySet()) {
+                    Record record = e.getValue();
+                    writer.write(record.size + "\t" + record.time + "\t"
+                            + Long.toHexString(record.crc) + "\t" + record.digest + "\t"
+                            + e.getKey() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Record a file entry. Names with a line break cannot be stored, they
+     * are left out and their file is compressed again on every update.
+     */
+    public void put(String name, Record record) {
+        if (name.indexOf('\n') < 0 && name.indexOf('\r') < 0) {
+            records.put(name, record);
+        }
+    }
+
+    /**
+     * @return record of an entry, null if none.
+     */
+    public Record get(String name) {
+        return records.get(name);
+    }
+
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(records.keySet());
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    /**
+     * SHA-256 of a file, in lowercase hex.
+     */
+    public static String digest(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = StreamPipeline.acquire();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] block = buffer.array();
+            int read;
+            while ((read = in.read(block, 0, block.length)) > 0) {
+                digest.update(block, 0, read);
+            }
+        } finally {
+            in.close();
+            StreamPipeline.release(buffer);
+        }
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
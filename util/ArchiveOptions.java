@@ -0,0 +1,221 @@
+package com.msci.moslem.util;
+
+import java.io.File;
+
+/**
+ * Options of one archive job, see {@link GZipHelper#compressAsync(ArchiveOptions)}
+ * and {@link GZipHelper#extractAsync(ArchiveOptions)}. Immutable, so one job
+ * cannot change the options of another.
+ * <pre>
+ * ArchiveOptions options = ArchiveOptions.builder(inputDir, zipFile)
+ *         .password(password)
+ *         .threads(8)
+ *         .progressListener(listener)
+ *         .build();
+ * </pre>
+ */
+public final class ArchiveOptions {
+
+    private final File input;
+    private final File output;
+    private final char[] password;
+    private final int threads;
+    private final int chunkSize;
+    private final int level;
+    private final FileTreeWalker.SymlinkPolicy symlinkPolicy;
+    private final CompressionPolicy compressionPolicy;
+    private final boolean incremental;
+    private final String[] includes;
+    private final ArchiveProgressListener progressListener;
+    private final long progressInterval;
+
+    private ArchiveOptions(Builder builder) {
+        this.input = builder.input;
+        this.output = builder.output;
+        this.password = builder.password == null ? null : builder.password.clone();
+        this.threads = builder.threads;
+        this.chunkSize = builder.chunkSize;
+        this.level = builder.level;
+        this.symlinkPolicy = builder.symlinkPolicy;
+        this.compressionPolicy = builder.compressionPolicy;
+        this.incremental = builder.incremental;
+        this.includes = builder.includes == null ? new String[0] : builder.includes.clone();
+        this.progressListener = builder.progressListener;
+        this.progressInterval = builder.progressInterval;
+    }
+
+    /**
+     * @param input  file or directory to compress, or archive to extract.
+     * @param output archive to create, or directory to extract into.
+     */
+    public static Builder builder(File input, File output) {
+        return new Builder(input, output);
+    }
+
+    public File getInput() {
+        return input;
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    /**
+     * @return copy of the password, null if not encrypted.
+     */
+    public char[] getPassword() {
+        return password == null ? null : password.clone();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public FileTreeWalker.SymlinkPolicy getSymlinkPolicy() {
+        return symlinkPolicy;
+    }
+
+    /**
+     * @return policy picking the compression of each entry, null to deflate
+     * all of them at level.
+     */
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /**
+     * @return true to update the output archive instead of creating it anew.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return entries to extract, empty for all.
+     */
+    public String[] getIncludes() {
+        return includes.clone();
+    }
+
+    public ArchiveProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    public static class Builder {
+
+        private final File input;
+        private final File output;
+        private char[] password;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int chunkSize = ParallelZipCompressor.DEFAULT_CHUNK_SIZE;
+        private int level = 5;
+        private FileTreeWalker.SymlinkPolicy symlinkPolicy = FileTreeWalker.SymlinkPolicy.FOLLOW;
+        private CompressionPolicy compressionPolicy;
+        private boolean incremental;
+        private String[] includes;
+        private ArchiveProgressListener progressListener;
+        private long progressInterval = 1000;
+
+        private Builder(File input, File output) {
+            if (input == null || output == null) {
+                throw new IllegalArgumentException("input and output are required");
+            }
+            this.input = input;
+            this.output = output;
+        }
+
+        /**
+         * Encrypt entries, or decrypt them when extracting.
+         */
+        public Builder password(char[] password) {
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * Worker threads of the job, defaults to the number of processors.
+         */
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be at least 1");
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        public Builder chunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Deflate level, 0 to 9, defaults to 5 like DEFLATE_LEVEL_NORMAL.
+         */
+        public Builder level(int level) {
+            this.level = level;
+            return this;
+        }
+
+        public Builder symlinkPolicy(FileTreeWalker.SymlinkPolicy symlinkPolicy) {
+            this.symlinkPolicy = symlinkPolicy;
+            return this;
+        }
+
+        /**
+         * Store or deflate each entry as the policy decides, the policy is
+         * shared, configure it before building.
+         */
+        public Builder compressionPolicy(CompressionPolicy compressionPolicy) {
+            this.compressionPolicy = compressionPolicy;
+            return this;
+        }
+
+        /**
+         * Update the output archive, compressing only new and modified
+         * files, see {@link ParallelZipCompressor#update(File, File)}.
+         */
+        public Builder incremental(boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
+        /**
+         * Names or globs of the entries to extract, see
+         * {@link ParallelZipExtractor#setIncludes(String...)}.
+         */
+        public Builder includes(String... includes) {
+            this.includes = includes;
+            return this;
+        }
+
+        public Builder progressListener(ArchiveProgressListener progressListener) {
+            this.progressListener = progressListener;
+            return this;
+        }
+
+        /**
+         * Min time between two progress callbacks in milliseconds, 1000 by
+         * default.
+         */
+        public Builder progressInterval(long progressInterval) {
+            this.progressInterval = progressInterval;
+            return this;
+        }
+
+        public ArchiveOptions build() {
+            return new ArchiveOptions(this);
+        }
+    }
+}
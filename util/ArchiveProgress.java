@@ -0,0 +1,58 @@
+package com.msci.moslem.util;
+
+/**
+ * Progress of an archive job at one point in time. The final progress is the
+ * result of the job.
+ */
+public class ArchiveProgress {
+
+    private final long bytes;
+    private final long entries;
+    private final long elapsedNanos;
+    private final boolean done;
+
+    public ArchiveProgress(long bytes, long entries, long elapsedNanos, boolean done) {
+        this.bytes = bytes;
+        this.entries = entries;
+        this.elapsedNanos = elapsedNanos;
+        this.done = done;
+    }
+
+    /**
+     * @return uncompressed bytes processed so far.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return entries completed so far.
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return average throughput since the job started, in bytes per second.
+     */
+    public double getBytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @return true for the last progress of a job that succeeded.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries, %d bytes in %.1f s (%.1f MB/s)%s", entries, bytes,
+                elapsedNanos / 1e9, getBytesPerSecond() / (1024 * 1024), done ? ", done" : "");
+    }
+}
@@ -0,0 +1,13 @@
+package com.msci.moslem.util;
+
+/**
+ * Receives the progress of an archive job, at most once per progress interval
+ * of the job options, then once more when the job succeeds.
+ * <p/>
+ * Called from the threads of the job, never concurrently for one job. It
+ * should return quickly, the job waits for it.
+ */
+public interface ArchiveProgressListener {
+
+    void onProgress(ArchiveProgress progress);
+}
@@ -0,0 +1,93 @@
+package com.msci.moslem.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts the work done by one archive job, pushes progress to its listener
+ * at a bounded rate, and carries its cancellation.
+ */
+class ArchiveProgressTracker {
+
+    private final ArchiveProgressListener listener;
+    private final long intervalNanos;
+    private final long start = System.nanoTime();
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong nextReport;
+    // Serializes calls to the listener.
+    private final ReentrantLock reportLock = new ReentrantLock();
+    private volatile boolean cancelled;
+
+    ArchiveProgressTracker(ArchiveProgressListener listener, long intervalMillis) {
+        this.listener = listener;
+        this.intervalNanos = intervalMillis * 1000000L;
+        this.nextReport = new AtomicLong(start + intervalNanos);
+    }
+
+    void addBytes(long n) {
+        bytes.addAndGet(n);
+        maybeReport();
+    }
+
+    void addEntry() {
+        entries.incrementAndGet();
+        maybeReport();
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws InterruptedIOException if the job was cancelled.
+     */
+    void checkCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Archive job cancelled");
+        }
+    }
+
+    ArchiveProgress snapshot(boolean done) {
+        return new ArchiveProgress(bytes.get(), entries.get(), System.nanoTime() - start, done);
+    }
+
+    /**
+     * Report the final progress, whatever the time of the last report.
+     */
+    ArchiveProgress finish() {
+        ArchiveProgress progress = snapshot(true);
+        if (listener != null) {
+            reportLock.lock();
+            try {
+                listener.onProgress(progress);
+            } finally {
+                reportLock.unlock();
+            }
+        }
+        return progress;
+    }
+
+    private void maybeReport() {
+        if (listener == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = nextReport.get();
+        // One thread wins the report of an interval, the others carry on.
+        if (now - next >= 0 && nextReport.compareAndSet(next, now + intervalNanos)
+                && reportLock.tryLock()) {
+            try {
+                listener.onProgress(snapshot(false));
+            } finally {
+                reportLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.msci.moslem.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Configuration of {@link CityLuceneHelper}, read from
+ * localconfiguration.properties. Every key is optional, missing keys keep the
+ * default value:
+ * <pre>
+ * city.index.path                  index directory
+ * city.index.storage               fs | mmap | nio | ram (default fs)
+ * city.index.maxMiles              largest radius covered by tiers (default 10)
+ * city.index.minMiles              smallest radius covered by tiers (default 1)
+ * city.index.resultLimit           max cities of a radius query (default 100)
+ * city.index.ramBufferSizeMB       writer RAM buffer (default 16)
+ * city.index.commitBatchSize       changes per commit (default 1)
+ * city.index.commitInterval        max ms between commits, 0 = off (default 0)
+ * city.index.refreshInterval       ms between searcher refreshes, 0 = on demand
+ * city.index.storedFormat          json | smile (default json)
+ * city.index.decodedCache          true | false (default false)
+ * city.index.batchParallelism      threads of batch lookups (default processors)
+ * </pre>
+ */
+public class CityIndexConfig {
+
+    public static final String DEFAULT_RESOURCE = "localconfiguration.properties";
+
+    private static final String PREFIX = "city.index.";
+
+    /**
+     * How the index directory is opened.
+     */
+    public enum StorageMode {
+        /**
+         * Let Lucene pick the best implementation for the platform.
+         */
+        FS,
+        /**
+         * Memory-mapped files, the OS page cache holds the index.
+         */
+        MMAP,
+        /**
+         * Plain NIO file channels.
+         */
+        NIO,
+        /**
+         * Copy of the index loaded on heap when opened. Changes are not
+         * written back to disk.
+         */
+        RAM
+    }
+
+    private String path;
+    private StorageMode storageMode = StorageMode.FS;
+    private double maxMiles = 10;
+    private double minMiles = 1;
+    private int resultLimit = 100;
+    private double ramBufferSizeMB = 16;
+    private int commitBatchSize = 1;
+    private long commitInterval = 0;
+    private long refreshInterval = 0;
+    private CityLuceneHelper.StoredFormat storedFormat = CityLuceneHelper.StoredFormat.JSON;
+    private boolean decodedCacheEnabled = false;
+    private int batchParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Load localconfiguration.properties from the classpath.
+     *
+     * @return configuration, with default values if the file is not found.
+     */
+    public static CityIndexConfig load() throws IOException {
+        CityIndexConfig config = new CityIndexConfig();
+        InputStream is = CityIndexConfig.class.getClassLoader()
+                .getResourceAsStream(DEFAULT_RESOURCE);
+        if (is != null) {
+            try {
+                config.load(is);
+            } finally {
+                is.close();
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Load configuration from a properties file.
+     */
+    public static CityIndexConfig load(File file) throws IOException {
+        CityIndexConfig config = new CityIndexConfig();
+        InputStream is = new FileInputStream(file);
+        try {
+            config.load(is);
+        } finally {
+            is.close();
+        }
+        return config;
+    }
+
+    private void load(InputStream is) throws IOException {
+        Properties properties = new Properties();
+        properties.load(is);
+        apply(properties);
+    }
+
+    /**
+     * Override values with the city.index.* keys found in properties.
+     */
+    public void apply(Properties properties) {
+        String value;
+        if ((value = get(properties, "path")) != null) {
+            path = value;
+        }
+        if ((value = get(properties, "storage")) != null) {
+            storageMode = StorageMode.valueOf(value.toUpperCase());
+        }
+        if ((value = get(properties, "maxMiles")) != null) {
+            maxMiles = Double.parseDouble(value);
+        }
+        if ((value = get(properties, "minMiles")) != null) {
+            minMiles = Double.parseDouble(value);
+        }
+        if ((value = get(properties, "resultLimit")) != null) {
+            resultLimit = Integer.parseInt(value);
+        }
+        if ((value = get(properties, "ramBufferSizeMB")) != null) {
+            ramBufferSizeMB = Double.parseDouble(value);
+        }
+        if ((value = get(properties, "commitBatchSize")) != null) {
+            commitBatchSize = Integer.parseInt(value);
+        }
+        if ((value = get(properties, "commitInterval")) != null) {
+            commitInterval = Long.parseLong(value);
+        }
+        if ((value = get(properties, "refreshInterval")) != null) {
+            refreshInterval = Long.parseLong(value);
+        }
+        if ((value = get(properties, "storedFormat")) != null) {
+            storedFormat = CityLuceneHelper.StoredFormat.valueOf(value.toUpperCase());
+        }
+        if ((value = get(properties, "decodedCache")) != null) {
+            decodedCacheEnabled = Boolean.parseBoolean(value);
+        }
+        if ((value = get(properties, "batchParallelism")) != null) {
+            batchParallelism = Integer.parseInt(value);
+        }
+    }
+
+    private static String get(Properties properties, String key) {
+        String value = properties.getProperty(PREFIX + key);
+        return value == null ? null : value.trim();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public void setStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+    }
+
+    public double getMaxMiles() {
+        return maxMiles;
+    }
+
+    public void setMaxMiles(double maxMiles) {
+        this.maxMiles = maxMiles;
+    }
+
+    public double getMinMiles() {
+        return minMiles;
+    }
+
+    public void setMinMiles(double minMiles) {
+        this.minMiles = minMiles;
+    }
+
+    public int getResultLimit() {
+        return resultLimit;
+    }
+
+    public void setResultLimit(int resultLimit) {
+        this.resultLimit = resultLimit;
+    }
+
+    public double getRamBufferSizeMB() {
+        return ramBufferSizeMB;
+    }
+
+    public void setRamBufferSizeMB(double ramBufferSizeMB) {
+        this.ramBufferSizeMB = ramBufferSizeMB;
+    }
+
+    public int getCommitBatchSize() {
+        return commitBatchSize;
+    }
+
+    public void setCommitBatchSize(int commitBatchSize) {
+        this.commitBatchSize = commitBatchSize;
+    }
+
+    public long getCommitInterval() {
+        return commitInterval;
+    }
+
+    public void setCommitInterval(long commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    public CityLuceneHelper.StoredFormat getStoredFormat() {
+        return storedFormat;
+    }
+
+    public void setStoredFormat(CityLuceneHelper.StoredFormat storedFormat) {
+        this.storedFormat = storedFormat;
+    }
+
+    public boolean isDecodedCacheEnabled() {
+        return decodedCacheEnabled;
+    }
+
+    public void setDecodedCacheEnabled(boolean decodedCacheEnabled) {
+        this.decodedCacheEnabled = decodedCacheEnabled;
+    }
+
+    public int getBatchParallelism() {
+        return batchParallelism;
+    }
+
+    public void setBatchParallelism(int batchParallelism) {
+        this.batchParallelism = batchParallelism;
+    }
+}
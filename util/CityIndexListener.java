@@ -0,0 +1,56 @@
+package com.msci.moslem.util;
+
+/**
+ * Receives timings of {@link CityLuceneHelper} operations, see
+ * {@link CityLuceneHelper#addListener(CityIndexListener)}. Called on the
+ * thread running the operation, so implementations must be fast and
+ * thread-safe.
+ */
+public interface CityIndexListener {
+
+    enum Operation {
+        INDEX, REMOVE, RADIUS_QUERY, NEAREST_QUERY
+    }
+
+    /**
+     * Work done by the background thread, see
+     * {@link CityLuceneHelper#setCommitInterval(long)} and
+     * {@link CityLuceneHelper#setRefreshInterval(long)}.
+     */
+    enum BackgroundTask {
+        COMMIT, REFRESH
+    }
+
+    /**
+     * An operation completed.
+     *
+     * @param operation operation type.
+     * @param nanos     duration in nanoseconds.
+     * @param hits      cities added / removed, or returned by the query.
+     * @param rounds    boxes and cells searched by a nearest query, 0 otherwise.
+     */
+    void operationCompleted(Operation operation, long nanos, int hits, int rounds);
+
+    /**
+     * A new searcher was opened to see the latest changes.
+     *
+     * @param nanos duration of the refresh in nanoseconds.
+     */
+    void searcherReopened(long nanos);
+
+    /**
+     * Pending changes were committed.
+     *
+     * @param nanos duration of the commit in nanoseconds.
+     */
+    void committed(long nanos);
+
+    /**
+     * A background commit or refresh failed. A failed commit keeps the
+     * changes pending, both are tried again on the next run.
+     *
+     * @param task  task that failed.
+     * @param error cause of the failure.
+     */
+    void backgroundTaskFailed(BackgroundTask task, Exception error);
+}
@@ -0,0 +1,169 @@
+package com.msci.moslem.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Built-in statistics of {@link CityLuceneHelper}, always collected. Exposed
+ * through JMX by {@link CityLuceneHelper#registerMBean()}.
+ */
+public class CityIndexStats implements CityIndexListener, CityIndexStatsMXBean {
+
+    private final Histogram indexLatency = new Histogram(),
+            removeLatency = new Histogram(),
+            radiusLatency = new Histogram(),
+            nearestLatency = new Histogram(),
+            radiusHits = new Histogram(),
+            nearestHits = new Histogram(),
+            nearestRounds = new Histogram(),
+            reopenLatency = new Histogram(),
+            commitLatency = new Histogram();
+
+    private final AtomicInteger activeWriters, activeSearchers;
+
+    private final AtomicLong commitFailures = new AtomicLong(0),
+            refreshFailures = new AtomicLong(0);
+    private volatile String lastFailure;
+
+    CityIndexStats(AtomicInteger activeWriters, AtomicInteger activeSearchers) {
+        this.activeWriters = activeWriters;
+        this.activeSearchers = activeSearchers;
+    }
+
+    @Override
+    public void operationCompleted(Operation operation, long nanos, int hits, int rounds) {
+        switch (operation) {
+            case INDEX:
+                indexLatency.record(nanos);
+                break;
+            case REMOVE:
+                removeLatency.record(nanos);
+                break;
+            case RADIUS_QUERY:
+                radiusLatency.record(nanos);
+                radiusHits.record(hits);
+                break;
+            case NEAREST_QUERY:
+                nearestLatency.record(nanos);
+                nearestHits.record(hits);
+                nearestRounds.record(rounds);
+                break;
+        }
+    }
+
+    @Override
+    public void searcherReopened(long nanos) {
+        reopenLatency.record(nanos);
+    }
+
+    @Override
+    public void committed(long nanos) {
+        commitLatency.record(nanos);
+    }
+
+    @Override
+    public void backgroundTaskFailed(BackgroundTask task, Exception error) {
+        if (task == BackgroundTask.COMMIT) {
+            commitFailures.incrementAndGet();
+        } else {
+            refreshFailures.incrementAndGet();
+        }
+        lastFailure = task + ": " + error;
+    }
+
+    @Override
+    public Histogram.Snapshot getIndexLatency() {
+        return indexLatency.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getRemoveLatency() {
+        return removeLatency.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getRadiusQueryLatency() {
+        return radiusLatency.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getNearestQueryLatency() {
+        return nearestLatency.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getRadiusQueryHits() {
+        return radiusHits.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getNearestQueryHits() {
+        return nearestHits.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getNearestQueryRounds() {
+        return nearestRounds.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getReopenLatency() {
+        return reopenLatency.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getCommitLatency() {
+        return commitLatency.getSnapshot();
+    }
+
+    @Override
+    public long getReopenCount() {
+        return reopenLatency.getCount();
+    }
+
+    @Override
+    public long getCommitCount() {
+        return commitLatency.getCount();
+    }
+
+    @Override
+    public long getCommitFailureCount() {
+        return commitFailures.get();
+    }
+
+    @Override
+    public long getRefreshFailureCount() {
+        return refreshFailures.get();
+    }
+
+    @Override
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public int getActiveWriters() {
+        return activeWriters.get();
+    }
+
+    @Override
+    public int getActiveSearchers() {
+        return activeSearchers.get();
+    }
+
+    @Override
+    public void reset() {
+        indexLatency.reset();
+        removeLatency.reset();
+        radiusLatency.reset();
+        nearestLatency.reset();
+        radiusHits.reset();
+        nearestHits.reset();
+        nearestRounds.reset();
+        reopenLatency.reset();
+        commitLatency.reset();
+        commitFailures.set(0);
+        refreshFailures.set(0);
+        lastFailure = null;
+    }
+}
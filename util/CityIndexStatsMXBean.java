@@ -0,0 +1,53 @@
+package com.msci.moslem.util;
+
+/**
+ * JMX view of {@link CityIndexStats}. Latencies are in nanoseconds.
+ */
+public interface CityIndexStatsMXBean {
+
+    Histogram.Snapshot getIndexLatency();
+
+    Histogram.Snapshot getRemoveLatency();
+
+    Histogram.Snapshot getRadiusQueryLatency();
+
+    Histogram.Snapshot getNearestQueryLatency();
+
+    Histogram.Snapshot getRadiusQueryHits();
+
+    Histogram.Snapshot getNearestQueryHits();
+
+    /**
+     * Cells expanded per nearest query.
+     */
+    Histogram.Snapshot getNearestQueryRounds();
+
+    Histogram.Snapshot getReopenLatency();
+
+    Histogram.Snapshot getCommitLatency();
+
+    long getReopenCount();
+
+    long getCommitCount();
+
+    /**
+     * Background commits that failed, see CityLuceneHelper.setCommitInterval().
+     */
+    long getCommitFailureCount();
+
+    /**
+     * Background refreshes that failed, see CityLuceneHelper.setRefreshInterval().
+     */
+    long getRefreshFailureCount();
+
+    /**
+     * Task and error of the last background failure, null if none.
+     */
+    String getLastFailure();
+
+    int getActiveWriters();
+
+    int getActiveSearchers();
+
+    void reset();
+}
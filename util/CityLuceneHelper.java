@@ -5,12 +5,23 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.spatial.tier.DistanceQueryBuilder;
 import org.apache.lucene.spatial.tier.projections.CartesianTierPlotter;
@@ -18,35 +29,163 @@ import org.apache.lucene.spatial.tier.projections.IProjector;
 import org.apache.lucene.spatial.tier.projections.SinusoidalProjector;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.Version;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class provides function for interact with Lucene. We use Lucene Spatial
  * for providing Proximity Search for a city.
  *
  * @author Rakhmad Azhari <r.azhari@samsung.com> Date: 1/4/13 Time: 1:51 PM
- * @version 0.0.1 Initial version for SpatialSearch. Already covered most of all
- *          spatial search. No configuration / local properties used.
+ * @version 0.1.0 Instrumentation: operation timings for listeners and JMX,
+ *          see CityIndexStats.
  */
-public class CityLuceneHelper {
+public class CityLuceneHelper implements CitySpatialEngine {
 
-    //    private IndexWriter indexWriter;
-    private IndexSearcher indexSearcher;
+    private static final Logger logger = LoggerFactory.getLogger(CityLuceneHelper.class);
 
-    private static CityLuceneHelper instance;
+    /**
+     * Shared writer, opened lazily and kept until {@link #close()}. IndexWriter
+     * is thread-safe, so every write operation goes through this instance.
+     */
+    private IndexWriter indexWriter;
+    private Directory directory;
+
+    /**
+     * Reference counted, near-real-time searchers opened from the shared
+     * writer. Queries acquire a point-in-time searcher and release it when
+     * done, so a refresh never closes a reader still in use.
+     */
+    private volatile SearcherManager searcherManager;
+
+    /**
+     * Write operations hold the read lock (they may run concurrently), while
+     * opening/closing the writer holds the write lock. This way a writer can
+     * never be closed under a thread that is still using it.
+     */
+    private final ReadWriteLock writerLock = new ReentrantReadWriteLock();
+
+    /**
+     * Commit batching. A commit happens once this many changes are pending, or
+     * once commitInterval milliseconds have passed since the last commit,
+     * whichever comes first. Default is to commit after every operation.
+     */
+    private int commitBatchSize = 1;
+    private long commitInterval = 0;
+
+    private final AtomicInteger pendingChanges = new AtomicInteger(0);
+    private volatile long lastCommit = System.currentTimeMillis();
+
+    /**
+     * Searcher refresh. With a positive interval, searchers are refreshed in
+     * background and queries never wait for a refresh. Otherwise a query
+     * refreshes the searcher itself when changes were made since the last
+     * refresh.
+     */
+    private long refreshInterval = 0;
+    private volatile boolean stale = false;
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> commitTask, refreshTask;
+
+    /**
+     * How the city is stored in the index. JSON is the original format, Smile
+     * is Jackson's binary JSON: smaller and much cheaper to decode.
+     */
+    public enum StoredFormat {
+        JSON, SMILE
+    }
+
+    private static final String JSON_FIELD = "json";
+    private static final String BINARY_FIELD = "bin";
+
+    // ObjectMapper is thread-safe once configured, no need for one per call.
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+
+    private static final FieldSelector CITY_SELECTOR = new MapFieldSelector(
+            JSON_FIELD, BINARY_FIELD);
+
+    private volatile StoredFormat storedFormat = StoredFormat.JSON;
+
+    /**
+     * Decoded cities of the current reader, by doc id. Doc ids are only valid
+     * for one reader, so a new cache replaces it on every refresh.
+     */
+    private volatile boolean decodedCacheEnabled = false;
+    private volatile DecodedCache decodedCache;
+
+    /**
+     * Cache of nearest lookups, null when disabled. Changes are queued, and
+     * the entries they hit are dropped in one pass after the refresh that
+     * makes them visible. Until then, searchers answer as the cache does.
+     */
+    private volatile NearestCityCache nearestCache;
+    private final ConcurrentLinkedQueue<CacheChange> cacheChanges =
+            new ConcurrentLinkedQueue<CacheChange>();
+
+    /**
+     * Above this many cities, changes drop the whole nearest cache instead of
+     * checking every entry against every city.
+     */
+    private static final int CACHE_BULK_THRESHOLD = 1000;
+
+    /**
+     * Batch lookups run on their own fork-join pool, created on first use.
+     * A task handles at most BATCH_CHUNK_SIZE neighbouring locations.
+     */
+    private int batchParallelism = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool batchPool;
+
+    private static final int BATCH_CHUNK_SIZE = 64;
 
-    // TO-DO: Add configuration file (localconfiguration.properties)
+    // Locations read from an iterator and looked up at a time.
+    private static final int BATCH_STREAM_SIZE = 4096;
+
+    private static CityLuceneHelper instance;
 
     private String path;
 
+    private CityIndexConfig.StorageMode storageMode = CityIndexConfig.StorageMode.FS;
+    private int resultLimit = 100;
+    private double ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+
     /**
      * Spatial Stuff. Must research more. MAGIC STARTS HERE.
      */
@@ -65,9 +204,33 @@ public class CityLuceneHelper {
     private int startTier = ctp0.bestFit(maxMiles);
     private int endTier = ctp0.bestFit(minMiles);
 
+    private CartesianTierPlotter[] plotters = createPlotters();
+
+    /**
+     * Nearest lookup walks the tier boxes best-first, one term query per box.
+     * A box holding more than NEAREST_LEAF_SIZE cities is split into the
+     * boxes of the next tier. Past NEAREST_BOX_BUDGET queries, it walks a
+     * quadtree of latitude / longitude cells instead, split the same way until
+     * a cell is as small as the finest tier (minMiles).
+     */
+    private static final int NEAREST_LEAF_SIZE = 32;
+    private static final int NEAREST_BOX_BUDGET = 1024;
+
+    private static final FieldSelector ID_LOCATION_SELECTOR = new MapFieldSelector(
+            "id", LAT_FIELD, LON_FIELD);
+
     private AtomicInteger activeWriter = new AtomicInteger(0),
             activeSearcher = new AtomicInteger(0);
 
+    /**
+     * Instrumentation. Stats are always collected, more listeners can be
+     * plugged with addListener().
+     */
+    private final CityIndexStats stats = new CityIndexStats(activeWriter, activeSearcher);
+    private final CopyOnWriteArrayList<CityIndexListener> listeners =
+            new CopyOnWriteArrayList<CityIndexListener>();
+    private final AtomicLong searchersOpened = new AtomicLong(0);
+
     /**
      * END OF SPATIAL STUFF. MAGIC STOPS HERE.
      */
@@ -76,8 +239,83 @@ public class CityLuceneHelper {
      * Private Constructor.
      */
     private CityLuceneHelper() {
+        listeners.add(stats);
+
+    }
+
+    /**
+     * Apply a configuration, see {@link CityIndexConfig#load()}. Closes the
+     * current index first, the configuration takes effect on the next
+     * operation.
+     *
+     * @param config configuration to apply.
+     */
+    public void configure(CityIndexConfig config) throws IOException {
+        close();
+
+        storageMode = config.getStorageMode();
+        resultLimit = config.getResultLimit();
+        ramBufferSizeMB = config.getRamBufferSizeMB();
+        setTierRange(config.getMaxMiles(), config.getMinMiles());
+        setCommitBatchSize(config.getCommitBatchSize());
+        setCommitInterval(config.getCommitInterval());
+        setRefreshInterval(config.getRefreshInterval());
+        setStoredFormat(config.getStoredFormat());
+        setDecodedCacheEnabled(config.isDecodedCacheEnabled());
+        setBatchParallelism(config.getBatchParallelism());
+        if (config.getPath() != null) {
+            setPath(config.getPath());
+        }
+    }
+
+    /**
+     * Set the radius range covered by the spatial tiers. Only cities indexed
+     * afterwards get the new tiers, so an existing index must be rebuilt when
+     * the range changes.
+     *
+     * @param maxMiles largest radius, picks the coarsest tier.
+     * @param minMiles smallest radius, picks the finest tier.
+     */
+    public synchronized void setTierRange(double maxMiles, double minMiles) {
+        if (minMiles <= 0 || maxMiles < minMiles) {
+            throw new IllegalArgumentException("Need 0 < minMiles <= maxMiles");
+        }
+        this.maxMiles = maxMiles;
+        this.minMiles = minMiles;
+        startTier = ctp0.bestFit(maxMiles);
+        endTier = ctp0.bestFit(minMiles);
+        plotters = createPlotters();
+    }
 
+    /**
+     * @return statistics of the operations of this helper.
+     */
+    public CityIndexStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Plug a listener receiving the timings of every operation.
+     */
+    public void addListener(CityIndexListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CityIndexListener listener) {
+        if (listener != stats) {
+            listeners.remove(listener);
+        }
+    }
 
+    /**
+     * Expose the statistics as MBean
+     * com.msci.moslem.util:type=CityLuceneHelper on the platform MBean server.
+     */
+    public void registerMBean() throws JMException {
+        ObjectName name = new ObjectName("com.msci.moslem.util:type=CityLuceneHelper");
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+        }
     }
 
     /**
@@ -91,7 +329,17 @@ public class CityLuceneHelper {
         return instance;
     }
 
-    public void setPath(String path) {
+    /**
+     * Switch to the index in path, created if needed. The current index is
+     * closed first.
+     *
+     * @throws IOException committing or closing the current index failed, the
+     *                     path is not changed then.
+     */
+    public void setPath(String path) throws IOException {
+        // Switching index, release the writer of the old one first.
+        close();
+
         this.path = path;
 
         // check apa directory ada ?
@@ -99,37 +347,178 @@ public class CityLuceneHelper {
         if (!file.exists()) {
             file.mkdirs();
         }
+    }
+
+    /**
+     * Set how many changes may be pending before they are committed. A value
+     * of 1 commits after every operation.
+     *
+     * @param commitBatchSize number of added / removed documents per commit.
+     */
+    public void setCommitBatchSize(int commitBatchSize) {
+        if (commitBatchSize < 1) {
+            throw new IllegalArgumentException("commitBatchSize must be >= 1");
+        }
+        this.commitBatchSize = commitBatchSize;
+    }
+
+    /**
+     * Set the maximum time pending changes may stay uncommitted. Pending
+     * changes are committed in background once the interval passed, even when
+     * no more writes come in. Zero or negative disables time based commits.
+     *
+     * @param commitInterval interval in milliseconds.
+     */
+    public void setCommitInterval(long commitInterval) {
+        this.commitInterval = commitInterval;
+        writerLock.readLock().lock();
+        try {
+            if (indexWriter != null) {
+                scheduleCommitTask();
+            }
+        } finally {
+            writerLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Set the format used to store cities added from now on. Documents
+     * already in the index keep their format and are still read, use
+     * {@link #migrateStoredFormat()} to convert them.
+     *
+     * @param storedFormat format of new documents, JSON by default.
+     */
+    public void setStoredFormat(StoredFormat storedFormat) {
+        this.storedFormat = storedFormat;
+    }
+
+    /**
+     * Enable caching decoded cities by doc id, cleared on every searcher
+     * refresh. Cached cities are shared between callers, so they must be
+     * treated as read-only.
+     *
+     * @param decodedCacheEnabled true to enable, false by default.
+     */
+    public void setDecodedCacheEnabled(boolean decodedCacheEnabled) {
+        this.decodedCacheEnabled = decodedCacheEnabled;
+        if (!decodedCacheEnabled) {
+            decodedCache = null;
+        }
+    }
+
+    /**
+     * Put a cache in front of {@link #getNearbyCities(double, double)}.
+     *
+     * @param nearestCache cache to use, null to disable.
+     */
+    public void setNearestCache(NearestCityCache nearestCache) {
+        this.nearestCache = nearestCache;
+        cacheChanges.clear();
+    }
+
+    public NearestCityCache getNearestCache() {
+        return nearestCache;
+    }
 
+    /**
+     * Set how many threads run batch lookups, see
+     * {@link #getNearbyCities(double[])}.
+     *
+     * @param batchParallelism number of threads, number of processors by
+     *                         default.
+     */
+    public synchronized void setBatchParallelism(int batchParallelism) {
+        if (batchParallelism < 1) {
+            throw new IllegalArgumentException("batchParallelism must be >= 1");
+        }
+        this.batchParallelism = batchParallelism;
+        if (batchPool != null) {
+            batchPool.shutdown();
+            batchPool = null;
+        }
+    }
 
+    /**
+     * Set how often searchers are refreshed in background to see the latest
+     * changes. Zero or negative refreshes on demand, on the first query after
+     * a change.
+     *
+     * @param refreshInterval interval in milliseconds.
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+        writerLock.readLock().lock();
+        try {
+            if (indexWriter != null) {
+                scheduleRefreshTask();
+            }
+        } finally {
+            writerLock.readLock().unlock();
+        }
     }
 
     /**
-     * Preparing Index for Lucene.
+     * Preparing Index for Lucene. The writer is shared and stays open until
+     * {@link #close()} is called, so callers must not close it themselves.
      *
      * @return indexWriter object.
      */
     public IndexWriter getIndexWriter() throws IOException {
+        writerLock.readLock().lock();
+        try {
+            if (indexWriter != null) {
+                return indexWriter;
+            }
+        } finally {
+            writerLock.readLock().unlock();
+        }
 
-        Directory dir = FSDirectory.open(new File(path));
-        Analyzer analyzer = new WhitespaceAnalyzer(Version.LUCENE_36);
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_36,
-                analyzer);
-        IndexWriter indexWriter = new IndexWriter(dir,
-                config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
-        return indexWriter;
+        writerLock.writeLock().lock();
+        try {
+            if (indexWriter == null) {
+                directory = openDirectory();
+                Analyzer analyzer = new WhitespaceAnalyzer(Version.LUCENE_36);
+                IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_36,
+                        analyzer);
+                config.setRAMBufferSizeMB(ramBufferSizeMB);
+                indexWriter = new IndexWriter(directory,
+                        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+                searcherManager = new SearcherManager(indexWriter, true,
+                        new SearcherFactory() {
+                            @Override
+                            public IndexSearcher newSearcher(IndexReader reader)
+                                    throws IOException {
+                                searchersOpened.incrementAndGet();
+                                decodedCache = decodedCacheEnabled
+                                        ? new DecodedCache(reader) : null;
+                                return super.newSearcher(reader);
+                            }
+                        });
+                scheduleCommitTask();
+                scheduleRefreshTask();
+            }
+            return indexWriter;
+        } finally {
+            writerLock.writeLock().unlock();
+        }
     }
 
     /**
      * Clear Index for Lucene.
-     *
-     * @return indexWriter object.
      */
     public void clearIndex() throws IOException {
-        IndexWriter indexWriter = getIndexWriter();
-        indexWriter.deleteAll();
-        indexWriter.commit();
-        indexWriter.close();
-        indexSearcher = null;
+        IndexWriter writer = beginWrite();
+        try {
+            writer.deleteAll();
+            long start = System.nanoTime();
+            writer.commit();
+            fireCommitted(System.nanoTime() - start);
+            pendingChanges.set(0);
+            lastCommit = System.currentTimeMillis();
+            invalidateCache((CityBean) null, false);
+        } finally {
+            endWrite();
+        }
     }
 
     /**
@@ -138,12 +527,47 @@ public class CityLuceneHelper {
      * @param city CityBean object reference to delete.
      */
     public void removeFromIndex(CityBean city) throws IOException {
-        Term term = new Term("id", Long.toString(city.getId()));
-        IndexWriter indexWriter = getIndexWriter();
-        indexWriter.deleteDocuments(term);
-        indexWriter.commit();
-        indexWriter.close();
-        indexSearcher = null;
+        long start = System.nanoTime();
+        IndexWriter writer = beginWrite();
+        try {
+            writer.deleteDocuments(idTerm(city));
+            pendingChanges.incrementAndGet();
+            invalidateCache(city, false);
+        } finally {
+            endWrite();
+        }
+        maybeCommit();
+        fireOperation(CityIndexListener.Operation.REMOVE, System.nanoTime() - start, 1, 0);
+    }
+
+    /**
+     * Delete several cities from Lucene's index in one operation.
+     *
+     * @param cities CityBean objects to delete.
+     */
+    public void removeAll(Collection<CityBean> cities) throws IOException {
+        if (cities.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Term[] terms = new Term[cities.size()];
+        int i = 0;
+        for (CityBean city : cities) {
+            terms[i++] = idTerm(city);
+        }
+
+        IndexWriter writer = beginWrite();
+        try {
+            writer.deleteDocuments(terms);
+            pendingChanges.addAndGet(terms.length);
+            invalidateCache(cities, false);
+        } finally {
+            endWrite();
+        }
+        maybeCommit();
+        fireOperation(CityIndexListener.Operation.REMOVE, System.nanoTime() - start,
+                terms.length, 0);
     }
 
     /**
@@ -153,129 +577,1326 @@ public class CityLuceneHelper {
      * @param city CityBean object to add into Lucene's index.
      */
     public void addToIndex(CityBean city) throws IOException {
-
-        // remove city with same code !
+        long start = System.nanoTime();
 
         // Preparing Document object
-        Document doc = new Document();
-
-        // Add city information to index.
-        doc.add(new Field("id", Long.toString(city.getId()), Field.Store.YES,
-                Field.Index.NOT_ANALYZED));
-        doc.add(new Field("json", new ObjectMapper().writeValueAsString(city),
-                Field.Store.YES, Field.Index.NOT_ANALYZED));
-        doc.add(new Field("metafile", "doc", Field.Store.YES,
-                Field.Index.NOT_ANALYZED));
-
-        // Add Spatial Location starts here.
-        doc.add(new Field(LAT_FIELD, NumericUtils.doubleToPrefixCoded(city
-                .getLatitude()), Field.Store.YES, Field.Index.NOT_ANALYZED));
-        doc.add(new Field(LON_FIELD, NumericUtils.doubleToPrefixCoded(city
-                .getLongitude()), Field.Store.YES, Field.Index.NOT_ANALYZED));
-
-        /**
-         * 07.01.2013 Still have no idea what this code block do. Must read some
-         * reference more. First attempt, let's just pray it works. ^^v
-         */
-        for (int tier = startTier; tier <= endTier; tier++) {
-            CartesianTierPlotter ctp = new CartesianTierPlotter(tier,
-                    projector, TIER_PREFIX_FIELD);
-            double boxId = ctp.getTierBoxId(city.getLatitude(),
-                    city.getLongitude());
-            doc.add(new Field(ctp.getTierFieldName(), NumericUtils
-                    .doubleToPrefixCoded(boxId), Field.Store.YES,
-                    Field.Index.NOT_ANALYZED_NO_NORMS));
-        }
-
-        IndexWriter indexWriter = getIndexWriter();
+        Document doc = createDocument(city);
 
+        IndexWriter writer = beginWrite();
         try {
-            activeWriter.incrementAndGet();
             // Adding Document to Lucene index.
-            indexWriter.addDocument(doc);
+            writer.addDocument(doc);
+            pendingChanges.incrementAndGet();
+            invalidateCache(city, true);
         } finally {
-            synchronized (this) {
-                int write = activeWriter.decrementAndGet();
-                if (write == 0) {
-                    indexWriter.commit();
-                    indexWriter.close();
+            endWrite();
+        }
+        maybeCommit();
+        fireOperation(CityIndexListener.Operation.INDEX, System.nanoTime() - start, 1, 0);
+    }
+
+    /**
+     * Adding several cities to Lucene database. Changes are committed once
+     * for the whole collection (or per commit batch), instead of once per
+     * city like {@link #addToIndex(CityBean)} does by default.
+     *
+     * @param cities CityBean objects to add into Lucene's index.
+     */
+    public void addAll(Collection<CityBean> cities) throws IOException {
+        long start = System.nanoTime();
+        IndexWriter writer = beginWrite();
+        try {
+            for (CityBean city : cities) {
+                writer.addDocument(createDocument(city));
+                // Commit inside the batch, so huge collections don't pile
+                // up in a single commit.
+                if (pendingChanges.incrementAndGet() >= commitBatchSize
+                        && commitBatchSize > 1) {
+                    commit(writer);
                 }
             }
+            invalidateCache(cities, true);
+        } finally {
+            endWrite();
         }
-
-        indexSearcher = null;
+        maybeCommit();
+        fireOperation(CityIndexListener.Operation.INDEX, System.nanoTime() - start,
+                cities.size(), 0);
     }
 
-    public List<CityBean> getNearbyCities(double lat, double lon, double miles)
-            throws IOException {
+    /**
+     * Add a city, replacing the city with the same id if it already exists in
+     * the index.
+     *
+     * @param city CityBean object to add or replace.
+     */
+    public void upsert(CityBean city) throws IOException {
+        long start = System.nanoTime();
+        Document doc = createDocument(city);
 
-        if (indexSearcher == null) {
-            Directory dir = FSDirectory.open(new File(path));
+        IndexWriter writer = beginWrite();
+        try {
+            writer.updateDocument(idTerm(city), doc);
+            pendingChanges.incrementAndGet();
+            // City may have moved, drop where it was and where it is now.
+            invalidateCache(city, false);
+            invalidateCache(city, true);
+        } finally {
+            endWrite();
+        }
+        maybeCommit();
+        fireOperation(CityIndexListener.Operation.INDEX, System.nanoTime() - start, 1, 0);
+    }
 
-            indexSearcher = new IndexSearcher(IndexReader.open(dir));
+    /**
+     * Commit all pending changes, regardless of the commit batching settings.
+     */
+    public void flush() throws IOException {
+        IndexWriter writer = beginWrite();
+        try {
+            commit(writer);
+        } finally {
+            endWrite();
         }
+    }
 
-        /**
-         * Build Query.
-         */
+    /**
+     * Refresh the searcher, so the following queries see all changes made so
+     * far. Returns immediately if another thread is already refreshing.
+     */
+    public void refresh() throws IOException {
+        refresh(getSearcherManager());
+    }
 
-        DistanceQueryBuilder queryBuilder = new DistanceQueryBuilder(lat, lon,
-                miles, LAT_FIELD, LON_FIELD, TIER_PREFIX_FIELD, false,
-                startTier, endTier);
+    /**
+     * Commit pending changes and release the writer and searchers. Searchers
+     * acquired by running queries stay valid until they are released. The
+     * helper can be used again afterwards, a new writer is opened on the next
+     * operation.
+     */
+    public void close() throws IOException {
+        cancelCommitTask();
+        cancelRefreshTask();
 
-        TermQuery tq = new TermQuery(new Term("metafile", "doc"));
+        synchronized (this) {
+            if (batchPool != null) {
+                batchPool.shutdown();
+                batchPool = null;
+            }
+        }
 
-        TopDocs hits;
+        writerLock.writeLock().lock();
         try {
-            hits = indexSearcher.search(queryBuilder.getQuery(tq), 100);
+            if (indexWriter != null) {
+                try {
+                    searcherManager.close();
+                    commit(indexWriter);
+                } finally {
+                    searcherManager = null;
+                    try {
+                        indexWriter.close();
+                    } finally {
+                        indexWriter = null;
+                        directory.close();
+                        directory = null;
+                    }
+                }
+            }
         } finally {
-            activeSearcher.decrementAndGet();
+            writerLock.writeLock().unlock();
         }
+    }
 
-        List<CityBean> cityList = new ArrayList<CityBean>();
-        for (int i = 0; i < hits.scoreDocs.length; i++) {
-            Document doc = indexSearcher.doc(hits.scoreDocs[i].doc);
-            String json = doc.get("json");
-            cityList.add(new ObjectMapper().readValue(json, CityBean.class));
+    /**
+     * Open the index directory according to the storage mode.
+     */
+    private Directory openDirectory() throws IOException {
+        File file = new File(path);
+        switch (storageMode) {
+            case MMAP:
+                return new MMapDirectory(file);
+            case NIO:
+                return new NIOFSDirectory(file);
+            case RAM:
+                Directory source = FSDirectory.open(file);
+                try {
+                    return new RAMDirectory(source);
+                } finally {
+                    source.close();
+                }
+            default:
+                return FSDirectory.open(file);
         }
-        return cityList;
     }
 
-    public CityBean getNearbyCities(double lat, double lon) throws IOException {
-
-        double MAX_DISTANCE = 20E3;
-        double distance = 1;
-
-        List<CityBean> cityList = new ArrayList<CityBean>();
-
-        while (cityList.size() == 0 && distance < MAX_DISTANCE) {
-
-            cityList = getNearbyCities(lat, lon, distance);
-            distance = 2 * distance;
+    private SearcherManager getSearcherManager() throws IOException {
+        while (true) {
+            getIndexWriter();
+            SearcherManager manager = searcherManager;
+            // Null when closed in between, just open it again.
+            if (manager != null) {
+                return manager;
+            }
         }
+    }
 
-        double currentDistance = 0;
-        CityBean city = null;
+    private void refresh(SearcherManager manager) throws IOException {
+        stale = false;
+        // Only changes made before the refresh started are surely visible.
+        int changes = cacheChanges.size();
+        long opened = searchersOpened.get();
+        long start = System.nanoTime();
+        boolean refreshed = manager.maybeRefresh();
+        if (searchersOpened.get() != opened) {
+            fireSearcherReopened(System.nanoTime() - start);
+        }
+        if (refreshed) {
+            applyCacheChanges(changes);
+        }
+    }
 
-        for (CityBean cityI : cityList) {
-            double distanceI = distance(lat, lon, cityI);
-            if (city == null) {
-                city = cityI;
-                currentDistance = distanceI;
+    /**
+     * Drop the nearest cache entries hit by the first queued changes, now
+     * visible to searchers.
+     */
+    private void applyCacheChanges(int changes) {
+        List<CityBean> added = new ArrayList<CityBean>();
+        Set<Long> removedIds = new HashSet<Long>();
+        boolean all = changes > CACHE_BULK_THRESHOLD;
+        for (int i = 0; i < changes; i++) {
+            CacheChange change = cacheChanges.poll();
+            if (change == null) {
+                break;
+            }
+            if (change.city == null) {
+                all = true;
+            } else if (change.added) {
+                added.add(change.city);
             } else {
-                if (distanceI < currentDistance) {
-                    city = cityI;
-                    currentDistance = distanceI;
-                }
+                removedIds.add(change.city.getId());
             }
         }
 
-        return city;
+        NearestCityCache cache = nearestCache;
+        if (cache == null || changes == 0) {
+            return;
+        }
+        if (all) {
+            cache.invalidateAll();
+            return;
+        }
+        double[] addedLocations = new double[added.size() * 2];
+        for (int i = 0; i < added.size(); i++) {
+            addedLocations[2 * i] = added.get(i).getLatitude();
+            addedLocations[2 * i + 1] = added.get(i).getLongitude();
+        }
+        cache.invalidate(addedLocations, removedIds);
     }
 
-    public double distance(double lat, double lon, CityBean city) {
-        double distX = Math.abs(city.getLongitude() - lon);
-        double distY = Math.abs(city.getLatitude() - lat);
-        return Math.sqrt((distX * distX) + (distY * distY));
+    /**
+     * Queue a change for the nearest cache, see applyCacheChanges().
+     *
+     * @param city  city added or removed, null when every city was removed.
+     * @param added true if the city was added, false if removed.
+     */
+    private void invalidateCache(CityBean city, boolean added) {
+        if (nearestCache == null) {
+            return;
+        }
+        cacheChanges.add(new CacheChange(city, added));
+    }
+
+    private void invalidateCache(Collection<CityBean> cities, boolean added) {
+        if (nearestCache == null) {
+            return;
+        }
+        if (cities.size() > CACHE_BULK_THRESHOLD) {
+            invalidateCache((CityBean) null, false);
+            return;
+        }
+        for (CityBean city : cities) {
+            invalidateCache(city, added);
+        }
+    }
+
+    /**
+     * @return true if the next searcher acquired refreshes first, so the
+     *         nearest cache may still hold entries of changes made since.
+     */
+    private boolean isRefreshPending() {
+        return refreshInterval <= 0 && stale;
+    }
+
+    /**
+     * Acquire a point-in-time searcher from the manager. Must be paired with
+     * {@link #releaseSearcher(SearcherManager, IndexSearcher)} in a finally
+     * block.
+     */
+    private IndexSearcher acquireSearcher(SearcherManager manager) throws IOException {
+        if (isRefreshPending()) {
+            refresh(manager);
+        }
+        IndexSearcher searcher = manager.acquire();
+        activeSearcher.incrementAndGet();
+        return searcher;
+    }
+
+    private void releaseSearcher(SearcherManager manager, IndexSearcher searcher)
+            throws IOException {
+        activeSearcher.decrementAndGet();
+        manager.release(searcher);
+    }
+
+    /**
+     * Acquire the shared writer for one write operation. Must be paired with
+     * {@link #endWrite()} in a finally block.
+     */
+    private IndexWriter beginWrite() throws IOException {
+        while (true) {
+            IndexWriter writer = getIndexWriter();
+            writerLock.readLock().lock();
+            // Writer might have been closed between both calls.
+            if (writer == indexWriter) {
+                activeWriter.incrementAndGet();
+                return writer;
+            }
+            writerLock.readLock().unlock();
+        }
+    }
+
+    private void endWrite() {
+        stale = true;
+        activeWriter.decrementAndGet();
+        writerLock.readLock().unlock();
+    }
+
+    /**
+     * Commit if the pending changes reached the batch size or the commit
+     * interval passed.
+     */
+    private void maybeCommit() throws IOException {
+        int pending = pendingChanges.get();
+        if (pending == 0) {
+            return;
+        }
+        if (pending >= commitBatchSize || (commitInterval > 0
+                && System.currentTimeMillis() - lastCommit >= commitInterval)) {
+            writerLock.readLock().lock();
+            try {
+                if (indexWriter != null) {
+                    commit(indexWriter);
+                }
+            } finally {
+                writerLock.readLock().unlock();
+            }
+        }
+    }
+
+    private void commit(IndexWriter writer) throws IOException {
+        int pending = pendingChanges.getAndSet(0);
+        if (pending == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            writer.commit();
+        } catch (IOException e) {
+            // Not committed, keep them pending for the next try.
+            pendingChanges.addAndGet(pending);
+            throw e;
+        }
+        lastCommit = System.currentTimeMillis();
+        fireCommitted(System.nanoTime() - start);
+    }
+
+    private synchronized void scheduleCommitTask() {
+        cancelCommitTask();
+        if (commitInterval > 0) {
+            commitTask = getScheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        maybeCommit();
+                    } catch (IOException e) {
+                        // Changes stay pending, the next run tries again.
+                        logger.error("Background commit failed", e);
+                        fireBackgroundFailed(CityIndexListener.BackgroundTask.COMMIT, e);
+                    }
+                }
+            }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void cancelCommitTask() {
+        if (commitTask != null) {
+            commitTask.cancel(false);
+            commitTask = null;
+        }
+    }
+
+    private synchronized void scheduleRefreshTask() {
+        cancelRefreshTask();
+        if (refreshInterval > 0) {
+            refreshTask = getScheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (stale) {
+                            refresh();
+                        }
+                    } catch (IOException e) {
+                        logger.error("Background refresh failed", e);
+                        fireBackgroundFailed(CityIndexListener.BackgroundTask.REFRESH, e);
+                    }
+                }
+            }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void cancelRefreshTask() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CityLuceneHelper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Load and decode a city, going through the decoded cache when enabled.
+     */
+    private CityBean loadCity(IndexSearcher searcher, int docId) throws IOException {
+        DecodedCache cache = decodedCache;
+        if (cache == null || cache.reader != searcher.getIndexReader()) {
+            return toCity(searcher.doc(docId, CITY_SELECTOR));
+        }
+
+        CityBean city = cache.cities.get(docId);
+        if (city == null) {
+            city = toCity(searcher.doc(docId, CITY_SELECTOR));
+            cache.cities.set(docId, city);
+        }
+        return city;
+    }
+
+    private CityBean toCity(Document doc) throws IOException {
+        byte[] binary = doc.getBinaryValue(BINARY_FIELD);
+        if (binary != null) {
+            return SMILE_MAPPER.readValue(binary, CityBean.class);
+        }
+        String json = doc.get(JSON_FIELD);
+        return JSON_MAPPER.readValue(json, CityBean.class);
+    }
+
+    private void fireOperation(CityIndexListener.Operation operation, long nanos,
+                               int hits, int rounds) {
+        for (CityIndexListener listener : listeners) {
+            listener.operationCompleted(operation, nanos, hits, rounds);
+        }
+    }
+
+    private void fireSearcherReopened(long nanos) {
+        for (CityIndexListener listener : listeners) {
+            listener.searcherReopened(nanos);
+        }
+    }
+
+    private void fireCommitted(long nanos) {
+        for (CityIndexListener listener : listeners) {
+            listener.committed(nanos);
+        }
+    }
+
+    private void fireBackgroundFailed(CityIndexListener.BackgroundTask task, IOException e) {
+        for (CityIndexListener listener : listeners) {
+            listener.backgroundTaskFailed(task, e);
+        }
+    }
+
+    private Term idTerm(CityBean city) {
+        return new Term("id", Long.toString(city.getId()));
+    }
+
+    private CartesianTierPlotter[] createPlotters() {
+        CartesianTierPlotter[] result = new CartesianTierPlotter[endTier - startTier + 1];
+        for (int tier = startTier; tier <= endTier; tier++) {
+            result[tier - startTier] = new CartesianTierPlotter(tier,
+                    projector, TIER_PREFIX_FIELD);
+        }
+        return result;
+    }
+
+    /**
+     * Build Lucene document of a city.
+     *
+     * @param city CityBean object to convert.
+     * @return Document ready to be indexed.
+     */
+    private Document createDocument(CityBean city) throws IOException {
+        Document doc = new Document();
+
+        // Add city information to index.
+        doc.add(new Field("id", Long.toString(city.getId()), Field.Store.YES,
+                Field.Index.NOT_ANALYZED));
+        if (storedFormat == StoredFormat.SMILE) {
+            doc.add(new Field(BINARY_FIELD, SMILE_MAPPER.writeValueAsBytes(city)));
+        } else {
+            doc.add(new Field(JSON_FIELD, JSON_MAPPER.writeValueAsString(city),
+                    Field.Store.YES, Field.Index.NOT_ANALYZED));
+        }
+        doc.add(new Field("metafile", "doc", Field.Store.YES,
+                Field.Index.NOT_ANALYZED));
+
+        // Add Spatial Location starts here.
+        doc.add(new Field(LAT_FIELD, NumericUtils.doubleToPrefixCoded(city
+                .getLatitude()), Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(LON_FIELD, NumericUtils.doubleToPrefixCoded(city
+                .getLongitude()), Field.Store.YES, Field.Index.NOT_ANALYZED));
+
+        /**
+         * 07.01.2013 Still have no idea what this code block do. Must read some
+         * reference more. First attempt, let's just pray it works. ^^v
+         */
+        for (CartesianTierPlotter ctp : plotters) {
+            double boxId = ctp.getTierBoxId(city.getLatitude(),
+                    city.getLongitude());
+            doc.add(new Field(ctp.getTierFieldName(), NumericUtils
+                    .doubleToPrefixCoded(boxId), Field.Store.YES,
+                    Field.Index.NOT_ANALYZED_NO_NORMS));
+        }
+        return doc;
+    }
+
+    @Override
+    public List<CityBean> getNearbyCities(double lat, double lon, double miles)
+            throws IOException {
+
+        /**
+         * Build Query.
+         */
+
+        DistanceQueryBuilder queryBuilder = new DistanceQueryBuilder(lat, lon,
+                miles, LAT_FIELD, LON_FIELD, TIER_PREFIX_FIELD, false,
+                startTier, endTier);
+
+        TermQuery tq = new TermQuery(new Term("metafile", "doc"));
+
+        long start = System.nanoTime();
+        SearcherManager manager = getSearcherManager();
+        IndexSearcher searcher = acquireSearcher(manager);
+        try {
+            TopDocs hits = searcher.search(queryBuilder.getQuery(tq), resultLimit);
+
+            List<CityBean> cityList = new ArrayList<CityBean>();
+            for (int i = 0; i < hits.scoreDocs.length; i++) {
+                cityList.add(loadCity(searcher, hits.scoreDocs[i].doc));
+            }
+            fireOperation(CityIndexListener.Operation.RADIUS_QUERY,
+                    System.nanoTime() - start, cityList.size(), 0);
+            return cityList;
+        } finally {
+            releaseSearcher(manager, searcher);
+        }
+    }
+
+    /**
+     * Find the city nearest to a location.
+     *
+     * @return nearest city, or null if the index is empty.
+     */
+    @Override
+    public CityBean getNearbyCities(double lat, double lon) throws IOException {
+        NearestCityCache cache = nearestCache;
+        if (cache != null && !isRefreshPending()) {
+            CityBean city = cache.get(lat, lon);
+            if (city != null) {
+                return city;
+            }
+        }
+
+        SearcherManager manager = getSearcherManager();
+        long generation = cacheGeneration(manager, cache);
+        IndexSearcher searcher = acquireSearcher(manager);
+        try {
+            return nearestCity(searcher, cache, generation, lat, lon);
+        } finally {
+            releaseSearcher(manager, searcher);
+        }
+    }
+
+    /**
+     * Find the nearest city of many locations at once, typically for reverse
+     * geocoding jobs. Locations are sorted so that neighbouring ones are
+     * looked up together, then split over the batch pool (see
+     * {@link #setBatchParallelism(int)}). All lookups share one searcher, so
+     * they see the same point-in-time index.
+     *
+     * @param coordinates latitude and longitude of each location, one after
+     *                    another: lat0, lon0, lat1, lon1, ...
+     * @return nearest city of each location, in the same order. Null where
+     *         the index has no city.
+     */
+    public CityBean[] getNearbyCities(double[] coordinates) throws IOException {
+        if (coordinates.length % 2 != 0) {
+            throw new IllegalArgumentException("coordinates must hold lat / lon pairs");
+        }
+
+        int count = coordinates.length / 2;
+        CityBean[] result = new CityBean[count];
+        if (count == 0) {
+            return result;
+        }
+
+        // Z-order of the locations, with their position in the low bits.
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (zOrder(coordinates[2 * i], coordinates[2 * i + 1]) << 31) | i;
+        }
+        Arrays.sort(order);
+
+        NearestCityCache cache = nearestCache;
+        SearcherManager manager = getSearcherManager();
+        long generation = cacheGeneration(manager, cache);
+        IndexSearcher searcher = acquireSearcher(manager);
+        try {
+            getBatchPool().invoke(new BatchTask(searcher, cache, generation,
+                    coordinates, order, result, 0, count));
+        } catch (BatchException e) {
+            throw e.cause;
+        } finally {
+            releaseSearcher(manager, searcher);
+        }
+        return result;
+    }
+
+    /**
+     * Find the nearest city of a stream of locations too large to hold in
+     * memory at once. Locations are read and looked up BATCH_STREAM_SIZE at a
+     * time, as {@link #getNearbyCities(double[])} does, and each batch gets
+     * its own point-in-time searcher.
+     *
+     * @param locations latitude and longitude of each location, as double[2].
+     * @param results   receives the nearest city of each location, in the
+     *                  same order. Null where the index has no city.
+     * @return number of locations looked up.
+     */
+    public int getNearbyCities(Iterator<double[]> locations,
+                               Collection<? super CityBean> results) throws IOException {
+        double[] coordinates = new double[2 * BATCH_STREAM_SIZE];
+        int total = 0;
+        while (locations.hasNext()) {
+            int count = 0;
+            while (count < BATCH_STREAM_SIZE && locations.hasNext()) {
+                double[] location = locations.next();
+                coordinates[2 * count] = location[0];
+                coordinates[2 * count + 1] = location[1];
+                count++;
+            }
+            if (count < BATCH_STREAM_SIZE) {
+                coordinates = Arrays.copyOf(coordinates, 2 * count);
+            }
+            Collections.addAll(results, getNearbyCities(coordinates));
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Generation of the nearest cache, read before acquiring a searcher so an
+     * answer from a searcher older than the last invalidation is not cached.
+     * A pending refresh is done first, or its invalidation would drop the
+     * answers of this lookup.
+     */
+    private long cacheGeneration(SearcherManager manager, NearestCityCache cache)
+            throws IOException {
+        if (cache == null) {
+            return 0;
+        }
+        if (isRefreshPending()) {
+            refresh(manager);
+        }
+        return cache.getGeneration();
+    }
+
+    /**
+     * Nearest city of a location, computed on the given searcher and stored in
+     * the cache when one is given.
+     *
+     * @param generation generation of the cache read before the searcher was
+     *                   acquired.
+     */
+    private CityBean nearestCity(IndexSearcher searcher, NearestCityCache cache,
+                                 long generation, double lat, double lon)
+            throws IOException {
+        if (cache == null) {
+            List<NearbyCity> nearest = findNearest(searcher, lat, lon, 1);
+            return nearest.isEmpty() ? null : nearest.get(0).getCity();
+        }
+
+        // Cached answer is the nearest city of the cell's center.
+        List<NearbyCity> nearest = findNearest(searcher, cache.snapLatitude(lat),
+                cache.snapLongitude(lon), 1);
+        if (nearest.isEmpty()) {
+            return null;
+        }
+        cache.put(lat, lon, nearest.get(0), generation);
+        return nearest.get(0).getCity();
+    }
+
+    private synchronized ForkJoinPool getBatchPool() {
+        if (batchPool == null) {
+            batchPool = new ForkJoinPool(batchParallelism);
+        }
+        return batchPool;
+    }
+
+    /**
+     * Interleave the bits of 16 bit latitude and longitude cells, so that
+     * locations close to each other get close values.
+     */
+    private static long zOrder(double lat, double lon) {
+        long y = (long) ((Math.max(-90, Math.min(90, lat)) + 90) / 180 * 0xFFFF);
+        long x = (long) ((Math.max(-180, Math.min(180, lon)) + 180) / 360 * 0xFFFF);
+        long z = 0;
+        for (int bit = 0; bit < 16; bit++) {
+            z |= ((x >> bit) & 1) << (2 * bit);
+            z |= ((y >> bit) & 1) << (2 * bit + 1);
+        }
+        return z;
+    }
+
+    /**
+     * Find the k cities nearest to a location, ranked by great-circle
+     * distance.
+     * <p/>
+     * The search expands the tier boxes around the location best-first,
+     * ordered by their smallest possible distance to the location, and stops
+     * as soon as no unvisited box can hold a closer city. Far from any city,
+     * it expands latitude / longitude cells instead, see NEAREST_BOX_BUDGET.
+     *
+     * @param lat latitude of the location.
+     * @param lon longitude of the location.
+     * @param k   number of cities to return.
+     * @return up to k cities, closest first.
+     */
+    @Override
+    public List<NearbyCity> findNearest(double lat, double lon, int k)
+            throws IOException {
+        SearcherManager manager = getSearcherManager();
+        IndexSearcher searcher = acquireSearcher(manager);
+        try {
+            return findNearest(searcher, lat, lon, k);
+        } finally {
+            releaseSearcher(manager, searcher);
+        }
+    }
+
+    private List<NearbyCity> findNearest(IndexSearcher searcher, double lat,
+                                         double lon, int k) throws IOException {
+        if (k < 1) {
+            return new ArrayList<NearbyCity>();
+        }
+
+        long start = System.nanoTime();
+        NearestSearch search = new NearestSearch(searcher, lat, lon, k);
+        if (!search.walkBoxes()) {
+            // Too far from any city for the tier boxes, start over on
+            // latitude / longitude cells, whose size adapts to the data. No
+            // cell farther than the candidates found so far can matter.
+            double limit = search.best.size() == k
+                    ? search.best.peek().distance : Double.POSITIVE_INFINITY;
+            search.best.clear();
+            search.walkCells(limit);
+        }
+        List<NearbyCity> cityList = search.results();
+        fireOperation(CityIndexListener.Operation.NEAREST_QUERY,
+                System.nanoTime() - start, cityList.size(), search.rounds);
+        return cityList;
+    }
+
+    /**
+     * Lower bound of the distance from a location to the cities of a tier
+     * box, or infinity if no location falls in the box.
+     * <p/>
+     * Tier boxes are squares of the sinusoidal projection: y is the longitude
+     * and x is the longitude times the cosine of the latitude, both in
+     * radians. So a box is a longitude band crossed with a cosine band, that
+     * is a latitude band in each hemisphere.
+     */
+    private static double boxBound(double lat, double lon, long x, long y, double size) {
+        if ((x >= 0) != (y >= 0)) {
+            // x has the sign of the longitude.
+            return Double.POSITIVE_INFINITY;
+        }
+        double minAbsLon = y >= 0 ? y * size : -(y + 1) * size;
+        double minAbsX = x >= 0 ? x * size : -(x + 1) * size;
+        if (minAbsX > minAbsLon + size) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double minLon = Math.max(-180, Math.toDegrees(y * size));
+        double maxLon = Math.min(180, Math.toDegrees((y + 1) * size));
+        if (minLon >= maxLon) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double minCos = minAbsX / (minAbsLon + size);
+        double maxCos = minAbsLon > 0 ? Math.min(1, (minAbsX + size) / minAbsLon) : 1;
+        double minAbsLat = Math.toDegrees(Math.acos(maxCos));
+        double maxAbsLat = Math.toDegrees(Math.acos(minCos));
+        return Math.min(
+                GeoUtil.minDistanceToBox(lat, lon, minAbsLat, maxAbsLat, minLon, maxLon),
+                GeoUtil.minDistanceToBox(lat, lon, -maxAbsLat, -minAbsLat, minLon, maxLon));
+    }
+
+    /**
+     * Load a city by its id.
+     *
+     * @return the city, or null if it is not in the index.
+     */
+    public CityBean getCity(long id) throws IOException {
+        SearcherManager manager = getSearcherManager();
+        IndexSearcher searcher = acquireSearcher(manager);
+        try {
+            TopDocs hits = searcher.search(new TermQuery(new Term("id",
+                    Long.toString(id))), 1);
+            if (hits.scoreDocs.length == 0) {
+                return null;
+            }
+            return loadCity(searcher, hits.scoreDocs[0].doc);
+        } finally {
+            releaseSearcher(manager, searcher);
+        }
+    }
+
+    /**
+     * Build an in-memory engine holding the location of every city currently
+     * in the index. Lookups on the engine only come back to this index to load
+     * the cities they return. The engine does not follow later changes, build
+     * a new one to pick them up.
+     *
+     * @return engine over a snapshot of the index.
+     */
+    public InMemoryCityEngine buildInMemoryEngine() throws IOException {
+        SearcherManager manager = getSearcherManager();
+        IndexSearcher searcher = acquireSearcher(manager);
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            int count = reader.numDocs();
+            long[] ids = new long[count];
+            double[] lats = new double[count];
+            double[] lons = new double[count];
+
+            int size = 0;
+            for (int i = 0; i < reader.maxDoc() && size < count; i++) {
+                if (reader.isDeleted(i)) {
+                    continue;
+                }
+                Document doc = reader.document(i, ID_LOCATION_SELECTOR);
+                ids[size] = Long.parseLong(doc.get("id"));
+                lats[size] = NumericUtils.prefixCodedToDouble(doc.get(LAT_FIELD));
+                lons[size] = NumericUtils.prefixCodedToDouble(doc.get(LON_FIELD));
+                size++;
+            }
+
+            return new InMemoryCityEngine(ids, lats, lons, size, resultLimit,
+                    new InMemoryCityEngine.CityResolver() {
+                        @Override
+                        public CityBean getCity(long id) throws IOException {
+                            return CityLuceneHelper.this.getCity(id);
+                        }
+                    });
+        } finally {
+            releaseSearcher(manager, searcher);
+        }
+    }
+
+    /**
+     * Rewrite every city of the index in the current stored format, see
+     * {@link #setStoredFormat(StoredFormat)}. Cities are rewritten from a
+     * snapshot of the index, so do not update cities while migrating.
+     *
+     * @return number of cities rewritten.
+     */
+    public int migrateStoredFormat() throws IOException {
+        boolean toBinary = storedFormat == StoredFormat.SMILE;
+        int migrated = 0;
+
+        SearcherManager manager = getSearcherManager();
+        IndexSearcher searcher = acquireSearcher(manager);
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                if (reader.isDeleted(i)) {
+                    continue;
+                }
+                Document stored = reader.document(i, CITY_SELECTOR);
+                if ((stored.getBinaryValue(BINARY_FIELD) != null) == toBinary) {
+                    continue;
+                }
+
+                CityBean city = toCity(stored);
+                IndexWriter writer = beginWrite();
+                try {
+                    writer.updateDocument(idTerm(city), createDocument(city));
+                    pendingChanges.incrementAndGet();
+                } finally {
+                    endWrite();
+                }
+                migrated++;
+                maybeCommit();
+            }
+        } finally {
+            releaseSearcher(manager, searcher);
+        }
+        flush();
+        return migrated;
+    }
+
+    /**
+     * Planar distance on raw degrees. Only meaningful near the equator, use
+     * {@link GeoUtil#distance(double, double, double, double)} for real
+     * distances.
+     */
+    public double distance(double lat, double lon, CityBean city) {
+        double distX = Math.abs(city.getLongitude() - lon);
+        double distY = Math.abs(city.getLatitude() - lat);
+        return Math.sqrt((distX * distX) + (distY * distY));
+    }
+
+    /**
+     * State of one nearest lookup: the k best candidates so far and the
+     * number of queries run.
+     */
+    private class NearestSearch {
+
+        final IndexSearcher searcher;
+        final double lat, lon;
+        final int k;
+        // Worst candidate on top, so it can be replaced by a closer one.
+        final PriorityQueue<Candidate> best;
+        int rounds;
+
+        // Indexed tiers, coarsest first.
+        private final int firstTier = startTier;
+        private final CartesianTierPlotter[] tiers = plotters;
+
+        NearestSearch(IndexSearcher searcher, double lat, double lon, int k) {
+            this.searcher = searcher;
+            this.lat = lat;
+            this.lon = lon;
+            this.k = k;
+            this.best = new PriorityQueue<Candidate>(Math.min(k, 1024),
+                    Collections.reverseOrder());
+        }
+
+        /**
+         * Walk the boxes of the coarsest tier best-first, starting with the
+         * box of the location and spreading to the neighbours of each box
+         * visited. The boxes closer than the k-th candidate touch each other,
+         * so the walk stops as soon as the next box is farther.
+         *
+         * @return false if NEAREST_BOX_BUDGET boxes were searched before that.
+         */
+        boolean walkBoxes() throws IOException {
+            double size = boxSize(0);
+            double[] coords = projector.coords(lat, lon);
+            long minY = (long) Math.floor(-Math.PI / size);
+            long maxY = (long) Math.floor(Math.PI / size);
+
+            PriorityQueue<Box> boxes = new PriorityQueue<Box>();
+            Set<Long> seen = new HashSet<Long>();
+            long x = (long) Math.floor(coords[0] / size);
+            long y = (long) Math.floor(coords[1] / size);
+            boxes.add(new Box(x, y, boxBound(lat, lon, x, y, size)));
+            seen.add(Box.key(x, y));
+
+            while (!boxes.isEmpty()) {
+                Box box = boxes.poll();
+                if (best.size() == k && box.bound > best.peek().distance) {
+                    return true;
+                }
+                if (rounds >= NEAREST_BOX_BUDGET) {
+                    return false;
+                }
+
+                for (long dy = -1; dy <= 1; dy++) {
+                    for (long dx = -1; dx <= 1; dx++) {
+                        long nx = box.x + dx;
+                        long ny = box.y + dy;
+                        if (ny > maxY || ny < minY) {
+                            // Across the date line x changes sign.
+                            ny = ny > maxY ? minY : maxY;
+                            nx = -nx - 1;
+                        }
+                        if (seen.add(Box.key(nx, ny))) {
+                            double bound = boxBound(lat, lon, nx, ny, size);
+                            if (bound != Double.POSITIVE_INFINITY) {
+                                boxes.add(new Box(nx, ny, bound));
+                            }
+                        }
+                    }
+                }
+                searchBox(0, box.x, box.y);
+            }
+            return true;
+        }
+
+        /**
+         * Search a box with one term query, or its 4 boxes of the next tier if
+         * it holds more than NEAREST_LEAF_SIZE cities and that tier is
+         * indexed.
+         */
+        private void searchBox(int tier, long x, long y) throws IOException {
+            CartesianTierPlotter plotter = tiers[tier];
+            Term term = new Term(plotter.getTierFieldName(),
+                    NumericUtils.doubleToPrefixCoded(
+                            x + y / plotter.getTierVerticalPosDivider()));
+            rounds++;
+            // Most boxes are empty, a term lookup is much cheaper than a search.
+            if (searcher.docFreq(term) == 0) {
+                return;
+            }
+            if (searcher.docFreq(term) > NEAREST_LEAF_SIZE && tier + 1 < tiers.length) {
+                double size = boxSize(tier + 1);
+                for (long cy = 2 * y; cy <= 2 * y + 1; cy++) {
+                    for (long cx = 2 * x; cx <= 2 * x + 1; cx++) {
+                        double bound = boxBound(lat, lon, cx, cy, size);
+                        if (best.size() < k || bound <= best.peek().distance) {
+                            searchBox(tier + 1, cx, cy);
+                        }
+                    }
+                }
+                return;
+            }
+            searcher.search(new TermQuery(term), new Hits(0));
+        }
+
+        /**
+         * Box side of a tier, in radians, as CartesianTierPlotter computes it.
+         */
+        private double boxSize(int tier) {
+            return 180.0 / (int) Math.pow(2, firstTier + tier);
+        }
+
+        /**
+         * Walk a quadtree of latitude / longitude cells best-first, ordered by
+         * their smallest possible distance to the location. Empty cells are
+         * dropped without being split, so the work stays bounded however
+         * sparse the data around the location is.
+         *
+         * @param limit distance of the k-th nearest city, at most.
+         */
+        void walkCells(double limit) throws IOException {
+            double minCellSize = minMiles / GeoUtil.MILES_PER_DEGREE;
+
+            PriorityQueue<Cell> cells = new PriorityQueue<Cell>();
+            for (double minLat = -90; minLat < 90; minLat += 90) {
+                for (double minLon = -180; minLon < 180; minLon += 90) {
+                    cells.add(new Cell(lat, lon, minLat, minLat + 90, minLon, minLon + 90));
+                }
+            }
+
+            while (!cells.isEmpty()) {
+                Cell cell = cells.poll();
+                if (cell.bound > limit
+                        || best.size() == k && cell.bound > best.peek().distance) {
+                    break;
+                }
+
+                rounds++;
+                Query query = cell.toQuery();
+                Hits hits = new Hits(NEAREST_LEAF_SIZE);
+                searcher.search(query, hits);
+                if (hits.count <= NEAREST_LEAF_SIZE) {
+                    hits.offerAll();
+                    continue;
+                }
+
+                if (cell.maxLat - cell.minLat > minCellSize) {
+                    double midLat = (cell.minLat + cell.maxLat) / 2;
+                    double midLon = (cell.minLon + cell.maxLon) / 2;
+                    cells.add(new Cell(lat, lon, cell.minLat, midLat, cell.minLon, midLon));
+                    cells.add(new Cell(lat, lon, cell.minLat, midLat, midLon, cell.maxLon));
+                    cells.add(new Cell(lat, lon, midLat, cell.maxLat, cell.minLon, midLon));
+                    cells.add(new Cell(lat, lon, midLat, cell.maxLat, midLon, cell.maxLon));
+                } else {
+                    searcher.search(query, new Hits(0));
+                }
+            }
+        }
+
+        void offer(int docId, double distance) {
+            if (best.size() < k) {
+                best.add(new Candidate(docId, distance));
+            } else if (distance < best.peek().distance) {
+                best.poll();
+                best.add(new Candidate(docId, distance));
+            }
+        }
+
+        /**
+         * Collector offering the cities matching a query as candidates. Their
+         * location is read from the field cache of each segment, the city is
+         * decoded for the final results only.
+         */
+        private class Hits extends Collector {
+
+            // With a limit, hits are held back until offerAll(), and only
+            // counted past the limit. Without (0), they are offered at once.
+            private final int limit;
+            private final int[] docIds;
+            private final double[] distances;
+            int count;
+
+            private double[] lats, lons;
+            private int docBase;
+
+            Hits(int limit) {
+                this.limit = limit;
+                this.docIds = new int[limit];
+                this.distances = new double[limit];
+            }
+
+            @Override
+            public void setScorer(Scorer scorer) {
+            }
+
+            @Override
+            public void setNextReader(IndexReader reader, int docBase) throws IOException {
+                this.lats = FieldCache.DEFAULT.getDoubles(reader, LAT_FIELD,
+                        FieldCache.NUMERIC_UTILS_DOUBLE_PARSER);
+                this.lons = FieldCache.DEFAULT.getDoubles(reader, LON_FIELD,
+                        FieldCache.NUMERIC_UTILS_DOUBLE_PARSER);
+                this.docBase = docBase;
+            }
+
+            @Override
+            public void collect(int doc) {
+                count++;
+                if (limit == 0) {
+                    offer(docBase + doc, GeoUtil.distance(lat, lon, lats[doc], lons[doc]));
+                } else if (count <= limit) {
+                    docIds[count - 1] = docBase + doc;
+                    distances[count - 1] = GeoUtil.distance(lat, lon, lats[doc], lons[doc]);
+                }
+            }
+
+            @Override
+            public boolean acceptsDocsOutOfOrder() {
+                return true;
+            }
+
+            void offerAll() {
+                for (int i = 0; i < Math.min(count, limit); i++) {
+                    offer(docIds[i], distances[i]);
+                }
+            }
+        }
+
+        /**
+         * @return the candidates, closest first.
+         */
+        List<NearbyCity> results() throws IOException {
+            NearbyCity[] result = new NearbyCity[best.size()];
+            for (int i = result.length - 1; i >= 0; i--) {
+                Candidate candidate = best.poll();
+                result[i] = new NearbyCity(loadCity(searcher, candidate.docId),
+                        candidate.distance);
+            }
+            List<NearbyCity> cityList = new ArrayList<NearbyCity>(result.length);
+            Collections.addAll(cityList, result);
+            return cityList;
+        }
+    }
+
+    /**
+     * Tier box of the nearest lookup, ordered by its smallest possible
+     * distance to the searched location.
+     */
+    private static class Box implements Comparable<Box> {
+
+        final long x, y;
+        final double bound;
+
+        Box(long x, long y, double bound) {
+            this.x = x;
+            this.y = y;
+            this.bound = bound;
+        }
+
+        static Long key(long x, long y) {
+            return (x << 32) ^ (y & 0xFFFFFFFFL);
+        }
+
+        @Override
+        public int compareTo(Box other) {
+            return Double.compare(bound, other.bound);
+        }
+    }
+
+    /**
+     * Latitude / longitude cell of the nearest lookup, ordered by its smallest
+     * possible distance to the searched location.
+     */
+    private static class Cell implements Comparable<Cell> {
+
+        final double minLat, maxLat, minLon, maxLon;
+        final double bound;
+
+        Cell(double lat, double lon, double minLat, double maxLat, double minLon,
+             double maxLon) {
+            this.minLat = minLat;
+            this.maxLat = maxLat;
+            this.minLon = minLon;
+            this.maxLon = maxLon;
+            this.bound = GeoUtil.minDistanceToBox(lat, lon, minLat, maxLat, minLon, maxLon);
+        }
+
+        /**
+         * Range query on the prefix coded lat / lon terms, their order is the
+         * same as the numeric order. Upper bounds are exclusive, except at the
+         * pole and the date line, so every city falls in exactly one cell.
+         */
+        Query toQuery() {
+            BooleanQuery query = new BooleanQuery();
+            query.add(new TermRangeQuery(LAT_FIELD,
+                    NumericUtils.doubleToPrefixCoded(minLat),
+                    NumericUtils.doubleToPrefixCoded(maxLat), true, maxLat >= 90),
+                    BooleanClause.Occur.MUST);
+            query.add(new TermRangeQuery(LON_FIELD,
+                    NumericUtils.doubleToPrefixCoded(minLon),
+                    NumericUtils.doubleToPrefixCoded(maxLon), true, maxLon >= 180),
+                    BooleanClause.Occur.MUST);
+            return query;
+        }
+
+        @Override
+        public int compareTo(Cell other) {
+            return Double.compare(bound, other.bound);
+        }
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+
+        final int docId;
+        final double distance;
+
+        Candidate(int docId, double distance) {
+            this.docId = docId;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+
+    private static class DecodedCache {
+
+        final IndexReader reader;
+        final AtomicReferenceArray<CityBean> cities;
+
+        DecodedCache(IndexReader reader) {
+            this.reader = reader;
+            this.cities = new AtomicReferenceArray<CityBean>(reader.maxDoc());
+        }
+    }
+
+    /**
+     * A change to replay on the nearest cache after the next refresh.
+     */
+    private static class CacheChange {
+
+        final CityBean city;
+        final boolean added;
+
+        CacheChange(CityBean city, boolean added) {
+            this.city = city;
+            this.added = added;
+        }
+    }
+
+    /**
+     * Looks up the sorted locations order[from..to), splitting the range while
+     * it is larger than BATCH_CHUNK_SIZE.
+     */
+    private class BatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final IndexSearcher searcher;
+        private final NearestCityCache cache;
+        private final long generation;
+        private final double[] coordinates;
+        private final long[] order;
+        private final CityBean[] result;
+        private final int from, to;
+
+        BatchTask(IndexSearcher searcher, NearestCityCache cache, long generation,
+                  double[] coordinates, long[] order, CityBean[] result, int from, int to) {
+            this.searcher = searcher;
+            this.cache = cache;
+            this.generation = generation;
+            this.coordinates = coordinates;
+            this.order = order;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_CHUNK_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BatchTask(searcher, cache, generation, coordinates, order,
+                                result, from, mid),
+                        new BatchTask(searcher, cache, generation, coordinates, order,
+                                result, mid, to));
+                return;
+            }
+
+            try {
+                for (int i = from; i < to; i++) {
+                    int index = (int) (order[i] & 0x7FFFFFFF);
+                    double lat = coordinates[2 * index];
+                    double lon = coordinates[2 * index + 1];
+
+                    CityBean city = cache == null ? null : cache.get(lat, lon);
+                    if (city == null) {
+                        city = nearestCity(searcher, cache, generation, lat, lon);
+                    }
+                    result[index] = city;
+                }
+            } catch (IOException e) {
+                throw new BatchException(e);
+            }
+        }
+    }
+
+    /**
+     * Carries an IOException out of a batch task.
+     */
+    private static class BatchException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        final IOException cause;
+
+        BatchException(IOException cause) {
+            super(cause);
+            this.cause = cause;
+        }
     }
 }
@@ -0,0 +1,40 @@
+package com.msci.moslem.util;
+
+import com.msci.moslem.bean.CityBean;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Spatial lookups of cities. Implemented on top of Lucene by
+ * {@link CityLuceneHelper} and in memory by {@link InMemoryCityEngine}, so
+ * callers can switch backend without changing their code.
+ */
+public interface CitySpatialEngine {
+
+    /**
+     * Find cities within a radius of a location.
+     *
+     * @param lat   latitude of the location.
+     * @param lon   longitude of the location.
+     * @param miles radius in miles.
+     * @return cities found within the radius.
+     */
+    List<CityBean> getNearbyCities(double lat, double lon, double miles)
+            throws IOException;
+
+    /**
+     * Find the city nearest to a location.
+     *
+     * @return nearest city, or null if there is no city at all.
+     */
+    CityBean getNearbyCities(double lat, double lon) throws IOException;
+
+    /**
+     * Find the k cities nearest to a location, ranked by great-circle
+     * distance.
+     *
+     * @return up to k cities, closest first.
+     */
+    List<NearbyCity> findNearest(double lat, double lon, int k) throws IOException;
+}
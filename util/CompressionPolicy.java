@@ -0,0 +1,234 @@
+package com.msci.moslem.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Picks how each entry of an archive is compressed: stored as is, or deflated
+ * and at which level. Deflating already compressed data (images, archives,
+ * video) costs CPU and saves nothing.
+ * <p/>
+ * Files with a known compressed extension are stored. Others are sampled: the
+ * first sampleSize bytes are deflated at level 1, then
+ * <ul>
+ * <li>compressed size / size above storeRatio: stored,</li>
+ * <li>above lowGainRatio: deflated at lowGainLevel,</li>
+ * <li>otherwise: deflated at level.</li>
+ * </ul>
+ * Thread-safe once configured.
+ */
+public class CompressionPolicy {
+
+    /**
+     * Why an entry was compressed the way it was.
+     */
+    public enum Reason {
+        /**
+         * Empty file or directory, nothing to compress.
+         */
+        EMPTY,
+        /**
+         * Extension of an already compressed format.
+         */
+        EXTENSION,
+        /**
+         * Sample did not shrink enough, stored.
+         */
+        INCOMPRESSIBLE,
+        /**
+         * Sample shrank a little, deflated at the fast level.
+         */
+        LOW_GAIN,
+        /**
+         * Sample shrank well, deflated at the normal level.
+         */
+        COMPRESSIBLE
+    }
+
+    /**
+     * Compression of one entry.
+     */
+    public static class Decision {
+
+        private final int method;
+        private final int level;
+        private final Reason reason;
+
+        Decision(int method, int level, Reason reason) {
+            this.method = method;
+            this.level = level;
+            this.reason = reason;
+        }
+
+        /**
+         * @return ZipArchiveWriter.METHOD_STORED or METHOD_DEFLATED.
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        public boolean isStored() {
+            return method == ZipArchiveWriter.METHOD_STORED;
+        }
+
+        /**
+         * @return deflate level, 0 when stored.
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+    }
+
+    public static final String[] DEFAULT_STORED_EXTENSIONS = {
+            "png", "jpg", "jpeg", "gif", "webp",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "war",
+            "docx", "xlsx", "pptx", "odt", "ods", "apk",
+            "mp3", "aac", "ogg", "mp4", "m4a", "m4v", "mov", "avi", "mkv", "webm"
+    };
+
+    private final Set<String> storedExtensions = new HashSet<String>(
+            Arrays.asList(DEFAULT_STORED_EXTENSIONS));
+    private int level = 5;
+    private int lowGainLevel = 1;
+    private int sampleSize = 64 * 1024;
+    private double storeRatio = 0.95;
+    private double lowGainRatio = 0.85;
+
+    /**
+     * Replace the extensions always stored, without the dot.
+     */
+    public void setStoredExtensions(String... extensions) {
+        storedExtensions.clear();
+        for (String extension : extensions) {
+            storedExtensions.add(extension.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * @param level deflate level of compressible entries, 5 by default.
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * @param lowGainLevel deflate level of entries that shrink little, 1 by
+     *                     default.
+     */
+    public void setLowGainLevel(int lowGainLevel) {
+        this.lowGainLevel = lowGainLevel;
+    }
+
+    /**
+     * @param sampleSize bytes at the start of a file deflated to estimate its
+     *                   compressibility, 64 KB by default.
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @param storeRatio sample compression ratio above which entries are
+     *                   stored, 0.95 by default.
+     */
+    public void setStoreRatio(double storeRatio) {
+        this.storeRatio = storeRatio;
+    }
+
+    /**
+     * @param lowGainRatio sample compression ratio above which entries are
+     *                     deflated at the low gain level, 0.85 by default.
+     */
+    public void setLowGainRatio(double lowGainRatio) {
+        this.lowGainRatio = lowGainRatio;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Decide for a file, reading a sample of it if its extension is not
+     * enough.
+     */
+    public Decision decide(File file, long size) throws IOException {
+        Decision decision = decideByName(file.getName(), size);
+        if (decision != null) {
+            return decision;
+        }
+        byte[] sample = new byte[(int) Math.min(sampleSize, size)];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        int n = 0;
+        try {
+            while (n < sample.length) {
+                int read = raf.read(sample, n, sample.length - n);
+                if (read < 0) {
+                    break;
+                }
+                n += read;
+            }
+        } finally {
+            raf.close();
+        }
+        return decideBySample(sample, 0, n);
+    }
+
+    /**
+     * Decide from the name and size of a file alone.
+     *
+     * @return decision, or null if a sample is needed.
+     */
+    public Decision decideByName(String name, long size) {
+        if (size == 0) {
+            return new Decision(ZipArchiveWriter.METHOD_STORED, 0, Reason.EMPTY);
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH))) {
+            return new Decision(ZipArchiveWriter.METHOD_STORED, 0, Reason.EXTENSION);
+        }
+        return null;
+    }
+
+    /**
+     * Decide from the first bytes of a file, only the first sampleSize bytes
+     * are used.
+     */
+    public Decision decideBySample(byte[] data, int offset, int length) {
+        length = Math.min(length, sampleSize);
+        if (length == 0) {
+            return new Decision(ZipArchiveWriter.METHOD_STORED, 0, Reason.EMPTY);
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        long compressed = 0;
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            byte[] out = new byte[Math.min(length + 64, 16 * 1024)];
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        double ratio = (double) compressed / length;
+        if (ratio > storeRatio) {
+            return new Decision(ZipArchiveWriter.METHOD_STORED, 0, Reason.INCOMPRESSIBLE);
+        }
+        if (ratio > lowGainRatio) {
+            return new Decision(ZipArchiveWriter.METHOD_DEFLATED, lowGainLevel, Reason.LOW_GAIN);
+        }
+        return new Decision(ZipArchiveWriter.METHOD_DEFLATED, level, Reason.COMPRESSIBLE);
+    }
+}
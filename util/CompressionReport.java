@@ -0,0 +1,121 @@
+package com.msci.moslem.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Decisions of a {@link CompressionPolicy} over one archive: entries and
+ * bytes per reason, and what compression saved.
+ * <p/>
+ * Filled by the thread writing the archive, read it once the archive is
+ * done.
+ */
+public class CompressionReport {
+
+    /**
+     * Totals of the entries compressed for one reason.
+     */
+    public static class Totals {
+
+        private long entries;
+        private long size;
+        private long compressedSize;
+
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return uncompressed bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return bytes in the archive, without encryption headers.
+         */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSavedBytes() {
+            return size - compressedSize;
+        }
+    }
+
+    private final Map<CompressionPolicy.Reason, Totals> totals =
+            new EnumMap<CompressionPolicy.Reason, Totals>(CompressionPolicy.Reason.class);
+
+    void add(CompressionPolicy.Reason reason, long size, long compressedSize) {
+        Totals t = totals.get(reason);
+        if (t == null) {
+            t = new Totals();
+            totals.put(reason, t);
+        }
+        t.entries++;
+        t.size += size;
+        t.compressedSize += compressedSize;
+    }
+
+    /**
+     * @return totals of a reason, all zero if no entry had it.
+     */
+    public Totals getTotals(CompressionPolicy.Reason reason) {
+        Totals t = totals.get(reason);
+        return t == null ? new Totals() : t;
+    }
+
+    public long getEntries() {
+        long n = 0;
+        for (Totals t : totals.values()) {
+            n += t.entries;
+        }
+        return n;
+    }
+
+    /**
+     * @return uncompressed bytes of all entries.
+     */
+    public long getSize() {
+        long n = 0;
+        for (Totals t : totals.values()) {
+            n += t.size;
+        }
+        return n;
+    }
+
+    /**
+     * @return bytes saved by deflating, over all entries.
+     */
+    public long getSavedBytes() {
+        long n = 0;
+        for (Totals t : totals.values()) {
+            n += t.getSavedBytes();
+        }
+        return n;
+    }
+
+    /**
+     * @return uncompressed bytes stored without deflating them.
+     */
+    public long getStoredBytes() {
+        return getTotals(CompressionPolicy.Reason.EXTENSION).size
+                + getTotals(CompressionPolicy.Reason.INCOMPRESSIBLE).size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-14s %10s %15s %15s %15s%n",
+                "reason", "entries", "bytes", "archived", "saved"));
+        for (Map.Entry<CompressionPolicy.Reason, Totals> e : totals.entrySet()) {
+            Totals t = e.getValue();
+            sb.append(String.format("%-14s %10d %15d %15d %15d%n", e.getKey(),
+                    t.entries, t.size, t.compressedSize, t.getSavedBytes()));
+        }
+        sb.append(String.format("%-14s %10d %15d %15d %15d%n", "total", getEntries(),
+                getSize(), getSize() - getSavedBytes(), getSavedBytes()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,242 @@
+package com.msci.moslem.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Walks a directory tree lazily, one entry at a time. Only the directories
+ * from the root to the current entry are held open, so memory use depends on
+ * the depth of the tree, not on the number of files.
+ * <p/>
+ * Entries are named relative to the root, with '/' as separator, and a
+ * directory comes before its content. The root itself is not reported, unless
+ * it is a file: then it is the only entry, under its own name. Order within a
+ * directory is the order of the file system.
+ * <pre>
+ * FileTreeWalker walker = new FileTreeWalker(root, SymlinkPolicy.FOLLOW);
+ * try {
+ *     while (walker.next()) {
+ *         ... walker.getName(), walker.getType(), walker.getFile()
+ *     }
+ * } finally {
+ *     walker.close();
+ * }
+ * </pre>
+ * Files that are neither regular files, directories nor symbolic links
+ * (devices, pipes, sockets) are skipped.
+ */
+public class FileTreeWalker implements Closeable {
+
+    /**
+     * What to do with symbolic links found in the tree.
+     */
+    public enum SymlinkPolicy {
+        /**
+         * Report the file or directory the link points to. Broken links are
+         * skipped, and so are links to a directory being walked, which would
+         * loop forever.
+         */
+        FOLLOW,
+        /**
+         * Ignore links.
+         */
+        SKIP,
+        /**
+         * Report links as links, see {@link #getLinkTarget()}.
+         */
+        PRESERVE
+    }
+
+    public enum Type {
+        FILE, DIRECTORY, SYMLINK
+    }
+
+    private final File root;
+    private final SymlinkPolicy policy;
+    private final Deque<Level> levels = new ArrayDeque<Level>();
+    private boolean started;
+
+    // Current entry.
+    private Path path;
+    private String name;
+    private Type type;
+    private BasicFileAttributes attributes;
+
+    public FileTreeWalker(File root, SymlinkPolicy policy) {
+        this.root = root;
+        this.policy = policy;
+    }
+
+    /**
+     * Move to the next entry.
+     *
+     * @return false when the walk is over.
+     * @throws IOException root not found, or a directory cannot be read.
+     */
+    public boolean next() throws IOException {
+        if (!started) {
+            started = true;
+            Path rootPath = root.toPath();
+            BasicFileAttributes attrs = Files.readAttributes(rootPath, BasicFileAttributes.class);
+            if (attrs.isDirectory()) {
+                open(rootPath, "", attrs);
+            } else {
+                set(rootPath, rootPath.getFileName().toString(), Type.FILE, attrs);
+                return true;
+            }
+        }
+
+        while (!levels.isEmpty()) {
+            Level level = levels.peek();
+            if (!level.entries.hasNext()) {
+                levels.pop().stream.close();
+                continue;
+            }
+
+            Path child = level.entries.next();
+            String childName = level.prefix + child.getFileName();
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(child, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                // Deleted since the directory was listed.
+                continue;
+            }
+
+            if (attrs.isSymbolicLink()) {
+                if (policy == SymlinkPolicy.SKIP) {
+                    continue;
+                }
+                if (policy == SymlinkPolicy.PRESERVE) {
+                    set(child, childName, Type.SYMLINK, attrs);
+                    return true;
+                }
+                try {
+                    attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // Broken link.
+                    continue;
+                }
+                if (attrs.isDirectory() && isOpen(key(child, attrs))) {
+                    continue;
+                }
+            }
+
+            if (attrs.isDirectory()) {
+                open(child, childName + "/", attrs);
+                set(child, childName, Type.DIRECTORY, attrs);
+                return true;
+            }
+            if (attrs.isRegularFile()) {
+                set(child, childName, Type.FILE, attrs);
+                return true;
+            }
+        }
+
+        path = null;
+        name = null;
+        type = null;
+        attributes = null;
+        return false;
+    }
+
+    /**
+     * @return name of the entry relative to the root, without trailing '/'
+     *         for directories.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public File getFile() {
+        return path.toFile();
+    }
+
+    /**
+     * @return size of a file, as seen when it was reached.
+     */
+    public long getSize() {
+        return attributes.size();
+    }
+
+    public long getLastModified() {
+        return attributes.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * @return target of a symbolic link, as stored in the link.
+     */
+    public String getLinkTarget() throws IOException {
+        return Files.readSymbolicLink(path).toString();
+    }
+
+    /**
+     * Close the directories still open, if the walk is stopped before the
+     * end.
+     */
+    @Override
+    public void close() throws IOException {
+        while (!levels.isEmpty()) {
+            levels.pop().stream.close();
+        }
+    }
+
+    private void set(Path path, String name, Type type, BasicFileAttributes attributes) {
+        this.path = path;
+        this.name = name;
+        this.type = type;
+        this.attributes = attributes;
+    }
+
+    private void open(Path dir, String prefix, BasicFileAttributes attrs) throws IOException {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+        levels.push(new Level(stream, prefix, key(dir, attrs)));
+    }
+
+    private boolean isOpen(Object key) {
+        for (Level level : levels) {
+            if (level.key.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Identity of a directory, to detect links looping back to it.
+     */
+    private static Object key(Path dir, BasicFileAttributes attrs) throws IOException {
+        Object key = attrs.fileKey();
+        return key != null ? key : dir.toRealPath();
+    }
+
+    private static class Level {
+
+        final DirectoryStream<Path> stream;
+        final Iterator<Path> entries;
+        final String prefix;
+        final Object key;
+
+        Level(DirectoryStream<Path> stream, String prefix, Object key) {
+            this.stream = stream;
+            this.entries = stream.iterator();
+            this.prefix = prefix;
+            this.key = key;
+        }
+    }
+}
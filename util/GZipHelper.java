@@ -10,6 +10,10 @@ import net.lingala.zip4j.progress.ProgressMonitor;
 import net.lingala.zip4j.util.Zip4jConstants;
 
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -20,13 +24,47 @@ import java.util.zip.ZipInputStream;
  *
  * @author Rakhmad Azhari <r.azhari@samsung.com>
  * @version 0.0.4 - Adding compression method adapted from BlackBerry team.
+ * @version 0.0.5 - Adding parallel compression.
+ * @version 0.0.6 - Archiving whole directory trees.
+ * @version 0.0.7 - Adding parallel extraction.
+ * @version 0.0.8 - Adding asynchronous jobs.
+ * @version 0.0.9 - Adding adaptive compression.
+ * @version 0.1.0 - Adding incremental updates.
+ * <p/>
+ * The setters keep the state of one job: getInstance() returns a new helper
+ * on each call, use one per job. compressAsync() and extractAsync() take all
+ * their options as an argument and can be called from any thread.
  */
 public class GZipHelper {
 
     private static GZipHelper instance;
+
+    /**
+     * Poll interval of progress(), in milliseconds.
+     */
+    private static final long PROGRESS_POLL_INTERVAL = 500;
+
+    private static final int ZIP4J_DATA_DESCRIPTOR_SIZE = 16;
+
+    // Runs async jobs, each job uses its own worker threads.
+    private static final ExecutorService JOBS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "GZipHelper-job-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     private String inputPath, outputPath;
     private boolean isEncrypted = false;
     private String password;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = ParallelZipCompressor.DEFAULT_CHUNK_SIZE;
+    private FileTreeWalker.SymlinkPolicy symlinkPolicy = FileTreeWalker.SymlinkPolicy.FOLLOW;
+    private CompressionPolicy compressionPolicy;
+    private CompressionReport compressionReport;
 
     private GZipHelper() {}
 
@@ -53,6 +91,53 @@ public class GZipHelper {
         this.password = password;
     }
 
+    /**
+     * Number of threads used by compressParallel() and extractParallel(), defaults to the number of
+     * processors.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Size of the chunks files are cut in by compressParallel(), 1 MB by
+     * default. Up to two chunks per thread are held in memory.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * How symbolic links found in the input are archived, FOLLOW by default.
+     * Only compressParallel() can store links as links, the other methods
+     * skip them with PRESERVE.
+     */
+    public void setSymlinkPolicy(FileTreeWalker.SymlinkPolicy symlinkPolicy) {
+        this.symlinkPolicy = symlinkPolicy;
+    }
+
+    /**
+     * Adaptive compression: with a policy, compressParallel(), compressWithOutputStream()
+     * and compressWithEncrypOutputStream() store or deflate each file at the level the
+     * policy picks, instead of deflating everything at DEFLATE_LEVEL_NORMAL.
+     *
+     * @param compressionPolicy policy, null to deflate everything.
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Decisions made by the compression policy for the last archive created.
+     * compressWithEncrypOutputStream() cannot store entries, it deflates them at level 0,
+     * which adds a few bytes per entry.
+     *
+     * @return report, null if no policy is set.
+     */
+    public CompressionReport getCompressionReport() {
+        return compressionReport;
+    }
+
     /**
      * Create archive file using method provided by Zip4J.
      *
@@ -97,17 +182,63 @@ public class GZipHelper {
     }
 
     /**
-     * Create archive file using ZipOutputStream.
+     * Create archive file like compress(), but deflating (and encrypting) on
+     * several threads. Files are cut in chunks compressed concurrently, then
+     * written in order into one standard zip file, readable by extract() and
+     * common unzip tools.
+     *
+     * @throws IOException No file/directory is found, or failed to create archive.
+     */
+    public void compressParallel() throws IOException {
+
+        ParallelZipCompressor compressor = newParallelCompressor();
+        compressor.compress(new File(inputPath), new File(outputPath));
+        compressionReport = compressor.getReport();
+    }
+
+    /**
+     * Update the archive at outputPath like compressParallel(), but only compressing files
+     * added or modified since the last update. Entries of unchanged files are copied from the
+     * previous archive as they are, deleted files are left out. What each entry was made from
+     * is kept in outputPath + ".manifest", without it the archive is created from scratch.
+     *
+     * @return number of entries copied unchanged from the previous archive.
+     * @throws IOException No file/directory is found, or failed to update archive.
+     */
+    public int compressIncremental() throws IOException {
+
+        ParallelZipCompressor compressor = newParallelCompressor();
+        compressor.update(new File(inputPath), new File(outputPath));
+        compressionReport = compressor.getReport();
+        return compressor.getCopiedEntries();
+    }
+
+    private ParallelZipCompressor newParallelCompressor() {
+        ParallelZipCompressor compressor = new ParallelZipCompressor();
+        compressor.setThreads(threads);
+        compressor.setChunkSize(chunkSize);
+        compressor.setLevel(Zip4jConstants.DEFLATE_LEVEL_NORMAL);
+        compressor.setSymlinkPolicy(symlinkPolicy);
+        compressor.setCompressionPolicy(compressionPolicy);
+        if (isEncrypted) {
+            compressor.setPassword(password.toCharArray());
+        }
+        return compressor;
+    }
+
+    /**
+     * Create archive file using ZipOutputStream. The whole tree under
+     * inputPath is archived, walked one entry at a time.
      *
      * @throws ZipException
      * @throws IOException
      */
     public void compressWithOutputStream() throws ZipException, IOException {
 
-        // Initialize ZipOutputStream
-        ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(new File(outputPath)));
-
-        InputStream inputStream = null;
+        // Initialize ZipOutputStream, counting bytes for the compression report
+        CountingOutputStream counter = new CountingOutputStream(StreamPipeline.openOutput(new File(outputPath)));
+        ZipOutputStream zipOutputStream = new ZipOutputStream(counter);
+        compressionReport = compressionPolicy != null ? new CompressionReport() : null;
 
         // ZipParameters
         ZipParameters parameters = new ZipParameters();
@@ -120,17 +251,53 @@ public class GZipHelper {
             parameters.setPassword(password);
         }
 
-        File input = new File(inputPath);
-        if (input.isDirectory()) {
-            File[] contents = input.listFiles();
-            for (int i = 0; i < contents.length; i++) {
-                addToZipOutputStream(contents[i], zipOutputStream, parameters);
+        // Entry names are relative to the input directory
+        File input = new File(inputPath).getAbsoluteFile();
+        parameters.setDefaultFolderPath(input.isDirectory() ? input.getPath() : input.getParent());
+
+        FileTreeWalker walker = new FileTreeWalker(input, symlinkPolicy);
+        try {
+            while (walker.next()) {
+                if (walker.getType() == FileTreeWalker.Type.FILE && compressionPolicy != null) {
+                    CompressionPolicy.Decision decision = compressionPolicy.decide(walker.getFile(), walker.getSize());
+                    ZipParameters entryParameters = adaptParameters(parameters, decision);
+                    zipOutputStream.putNextEntry(walker.getFile(), entryParameters);
+                    long start = counter.getCount();
+                    StreamPipeline.copy(walker.getFile(), zipOutputStream);
+                    zipOutputStream.closeEntry();
+                    // Zip4J ends each entry with a data descriptor
+                    compressionReport.add(decision.getReason(), walker.getSize(),
+                            counter.getCount() - start - ZIP4J_DATA_DESCRIPTOR_SIZE);
+                } else if (walker.getType() != FileTreeWalker.Type.SYMLINK) {
+                    addToZipOutputStream(walker.getFile(), zipOutputStream, parameters);
+                }
             }
-        } else {
-            addToZipOutputStream(input, zipOutputStream, parameters);
+
+            zipOutputStream.finish();
+        } finally {
+            walker.close();
+            zipOutputStream.close();
         }
+    }
 
-        zipOutputStream.finish();
+    /**
+     * Copy of parameters with the compression picked by the policy.
+     */
+    private ZipParameters adaptParameters(ZipParameters parameters, CompressionPolicy.Decision decision) {
+        ZipParameters adapted = new ZipParameters();
+        if (decision.isStored()) {
+            adapted.setCompressionMethod(Zip4jConstants.COMP_STORE);
+        } else {
+            adapted.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
+            adapted.setCompressionLevel(decision.getLevel());
+        }
+        adapted.setEncryptFiles(parameters.isEncryptFiles());
+        if (parameters.isEncryptFiles()) {
+            adapted.setEncryptionMethod(parameters.getEncryptionMethod());
+            adapted.setPassword(parameters.getPassword());
+        }
+        adapted.setDefaultFolderPath(parameters.getDefaultFolderPath());
+        return adapted;
     }
 
     /**
@@ -148,17 +315,12 @@ public class GZipHelper {
         // Add input to zip file
         outputStream.putNextEntry(input, parameters);
 
-        //Initialize input stream
-        InputStream inputStream = new FileInputStream(input);
-        byte[] readBuff = new byte[4096];
-        int readLen;
-
-        while ((readLen = inputStream.read(readBuff)) != -1) {
-            outputStream.write(readBuff, 0, readLen);
+        // Copy in large blocks read through the file channel
+        if (!input.isDirectory()) {
+            StreamPipeline.copy(input, outputStream);
         }
 
         outputStream.closeEntry();
-        inputStream.close();
     }
 
     /**
@@ -177,21 +339,41 @@ public class GZipHelper {
         File input = new File(inputPath);
         File output = new File(outputPath);
 
-        ZipEncryptOutputStream zeos = new ZipEncryptOutputStream(new FileOutputStream(output), password);
-        java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(zeos);
-
-        if (input.isDirectory()) {
-            File[] files = input.listFiles();
-            for (int i = 0; i < files.length; i++) {
-                ZipEntry ze = new ZipEntry(files[i].getName());
+        // Buffer on both sides of the encryption, the zip stream writes
+        // little at a time.
+        ZipEncryptOutputStream zeos = new ZipEncryptOutputStream(StreamPipeline.openOutput(output), password);
+        java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(
+                new BufferedOutputStream(zeos, StreamPipeline.STREAM_BUFFER_SIZE));
+        compressionReport = compressionPolicy != null ? new CompressionReport() : null;
+
+        // Input may be a single file or a directory tree
+        FileTreeWalker walker = new FileTreeWalker(input, symlinkPolicy);
+        try {
+            while (walker.next()) {
+                FileTreeWalker.Type type = walker.getType();
+                if (type == FileTreeWalker.Type.SYMLINK) {
+                    continue;
+                }
+                ZipEntry ze = new ZipEntry(type == FileTreeWalker.Type.DIRECTORY
+                        ? walker.getName() + "/" : walker.getName());
+                ze.setTime(walker.getLastModified());
+                CompressionPolicy.Decision decision = null;
+                if (type == FileTreeWalker.Type.FILE && compressionPolicy != null) {
+                    // Stored entries need their CRC up front, level 0 deflate instead.
+                    decision = compressionPolicy.decide(walker.getFile(), walker.getSize());
+                    zos.setLevel(decision.getLevel());
+                }
                 zos.putNextEntry(ze);
-                InputStream is = new FileInputStream(files[i].getCanonicalPath());
-                int b;
-                while ((b = is.read()) != -1) {
-                    zos.write(b);
+                if (type == FileTreeWalker.Type.FILE) {
+                    StreamPipeline.copy(walker.getFile(), zos);
                 }
                 zos.closeEntry();
+                if (decision != null) {
+                    compressionReport.add(decision.getReason(), ze.getSize(), ze.getCompressedSize());
+                }
             }
+        } finally {
+            walker.close();
             zos.close();
         }
     }
@@ -205,20 +387,44 @@ public class GZipHelper {
 
         File input = new File(inputPath);
 
-        ZipDecryptInputStream zdis = new ZipDecryptInputStream(new FileInputStream(input), password);
-        ZipInputStream zis = new ZipInputStream(zdis);
-
-        ZipEntry ze;
-        while ((ze = zis.getNextEntry()) != null) {
-            FileOutputStream fos = new FileOutputStream(outputPath + ze.getName());
-            int b;
-            while ((b = zis.read()) != -1) {
-                fos.write(b);
+        ZipDecryptInputStream zdis = new ZipDecryptInputStream(StreamPipeline.openInput(input), password);
+        ZipInputStream zis = new ZipInputStream(
+                new BufferedInputStream(zdis, StreamPipeline.STREAM_BUFFER_SIZE));
+
+        // Entries are written to outputPath + name, within the directory of outputPath.
+        String root = new File(outputPath + "x").getCanonicalFile().getParent();
+        root = root.endsWith(File.separator) ? root : root + File.separator;
+
+        try {
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null) {
+                File file = resolve(root, outputPath + ze.getName());
+                if (ze.isDirectory()) {
+                    file.mkdirs();
+                } else {
+                    File parent = file.getParentFile();
+                    if (parent != null) {
+                        parent.mkdirs();
+                    }
+                    StreamPipeline.copy(zis, file);
+                }
+                zis.closeEntry();
             }
-            fos.close();
-            zis.closeEntry();
+        } finally {
+            zis.close();
         }
-        zis.close();
+    }
+
+    /**
+     * File of an entry, refusing names that would land outside the output
+     * directory.
+     */
+    private static File resolve(String root, String path) throws IOException {
+        File file = new File(path);
+        if (!(file.getCanonicalPath() + File.separator).startsWith(root)) {
+            throw new IOException("Entry outside of the output directory: " + path);
+        }
+        return file;
     }
 
     /**
@@ -242,9 +448,112 @@ public class GZipHelper {
 
     }
 
+    /**
+     * Extracting zipFile to outputPath like extract(), but inflating (and
+     * decrypting) entries on several threads. Entries can be selected by name
+     * or glob, the others are not read.
+     * <pre>
+     * helper.extractParallel("images/**", "*.json");
+     * </pre>
+     *
+     * @param patterns entries to extract, all of them if none is given. See
+     *                 ParallelZipExtractor.setIncludes().
+     * @return number of entries extracted.
+     * @throws IOException If no file found, failed to write, wrong password or corrupt archive.
+     */
+    public int extractParallel(String... patterns) throws IOException {
+
+        ParallelZipExtractor extractor = new ParallelZipExtractor();
+        extractor.setThreads(threads);
+        extractor.setIncludes(patterns);
+        if (isEncrypted) {
+            extractor.setPassword(password.toCharArray());
+        }
+        return extractor.extract(new File(inputPath), new File(outputPath));
+    }
+
+    /**
+     * Compress in the background, like compressParallel().
+     * <pre>
+     * ArchiveJob job = GZipHelper.compressAsync(ArchiveOptions.builder(dir, zip)
+     *         .progressListener(listener)
+     *         .build());
+     * ...
+     * job.cancel(true);
+     * </pre>
+     *
+     * @param options input, output and settings of the job.
+     * @return running job, completes with its final progress.
+     */
+    public static ArchiveJob compressAsync(final ArchiveOptions options) {
+
+        final ArchiveProgressTracker tracker = new ArchiveProgressTracker(
+                options.getProgressListener(), options.getProgressInterval());
+        final ArchiveJob job = new ArchiveJob(tracker);
+
+        final ParallelZipCompressor compressor = new ParallelZipCompressor();
+        compressor.setThreads(options.getThreads());
+        compressor.setChunkSize(options.getChunkSize());
+        compressor.setLevel(options.getLevel());
+        compressor.setPassword(options.getPassword());
+        compressor.setSymlinkPolicy(options.getSymlinkPolicy());
+        compressor.setCompressionPolicy(options.getCompressionPolicy());
+        compressor.setTracker(tracker);
+
+        JOBS.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (options.isIncremental()) {
+                        compressor.update(options.getInput(), options.getOutput());
+                    } else {
+                        compressor.compress(options.getInput(), options.getOutput());
+                    }
+                    job.complete(tracker.finish());
+                } catch (Throwable t) {
+                    job.completeExceptionally(t);
+                }
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Extract in the background, like extractParallel().
+     *
+     * @param options archive, output directory and settings of the job.
+     * @return running job, completes with its final progress.
+     */
+    public static ArchiveJob extractAsync(final ArchiveOptions options) {
+
+        final ArchiveProgressTracker tracker = new ArchiveProgressTracker(
+                options.getProgressListener(), options.getProgressInterval());
+        final ArchiveJob job = new ArchiveJob(tracker);
+
+        final ParallelZipExtractor extractor = new ParallelZipExtractor();
+        extractor.setThreads(options.getThreads());
+        extractor.setIncludes(options.getIncludes());
+        extractor.setPassword(options.getPassword());
+        extractor.setTracker(tracker);
+
+        JOBS.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    extractor.extract(options.getInput(), options.getOutput());
+                    job.complete(tracker.finish());
+                } catch (Throwable t) {
+                    job.completeExceptionally(t);
+                }
+            }
+        });
+        return job;
+    }
+
     /**
      * Adding Progress information to running process.
-     * Just for fun.
+     * Just for fun. Polls the monitor every PROGRESS_POLL_INTERVAL ms, see
+     * compressAsync() for progress callbacks.
      *
      * @param zipFile Zip File to monitor
      */
@@ -262,6 +571,12 @@ public class GZipHelper {
                     System.out.println("Extracting Files..");
                     break;
             }
+            try {
+                Thread.sleep(PROGRESS_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
         System.out.println("Result: " + monitor.getResult());
         if (monitor.getResult() == ProgressMonitor.RESULT_ERROR) {
@@ -273,4 +588,32 @@ public class GZipHelper {
         }
 
     }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
 }
@@ -0,0 +1,81 @@
+package com.msci.moslem.util;
+
+/**
+ * Great-circle distance helpers used by the city lookups. All distances are
+ * in miles, like the radius used by {@link CityLuceneHelper}.
+ */
+public final class GeoUtil {
+
+    public static final double EARTH_RADIUS_MILES = 3958.8;
+
+    /**
+     * Length of one degree of latitude.
+     */
+    public static final double MILES_PER_DEGREE = Math.PI * EARTH_RADIUS_MILES / 180;
+
+    private GeoUtil() {
+    }
+
+    /**
+     * Great-circle distance between two points, using haversine formula.
+     *
+     * @return distance in miles.
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double sinLat = Math.sin(dLat / 2);
+        double sinLon = Math.sin(dLon / 2);
+        double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1))
+                * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS_MILES * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Smallest great-circle distance between a point and any point of a
+     * latitude / longitude box. The box must not cross the date line.
+     *
+     * @return distance in miles, 0 when the point is inside the box.
+     */
+    public static double minDistanceToBox(double lat, double lon, double minLat,
+                                          double maxLat, double minLon, double maxLon) {
+        if (lon >= minLon && lon <= maxLon) {
+            // Closest point is on the same meridian.
+            if (lat < minLat) {
+                return (minLat - lat) * MILES_PER_DEGREE;
+            } else if (lat > maxLat) {
+                return (lat - maxLat) * MILES_PER_DEGREE;
+            }
+            return 0;
+        }
+        return Math.min(distanceToMeridian(lat, lon, minLon, minLat, maxLat),
+                distanceToMeridian(lat, lon, maxLon, minLat, maxLat));
+    }
+
+    /**
+     * Distance between a point and the part of a meridian between minLat and
+     * maxLat.
+     */
+    private static double distanceToMeridian(double lat, double lon, double meridian,
+                                             double minLat, double maxLat) {
+        double phi = Math.toRadians(lat);
+        double dLon = Math.toRadians(meridian - lon);
+        // Position of the closest point on the meridian's great circle.
+        double closest = Math.toDegrees(Math.atan2(Math.sin(phi),
+                Math.cos(phi) * Math.cos(dLon)));
+
+        double onSegment;
+        if (closest >= minLat && closest <= maxLat) {
+            onSegment = closest;
+        } else {
+            // Distance grows moving away along the circle, take the nearest end.
+            onSegment = angle(closest, minLat) <= angle(closest, maxLat) ? minLat : maxLat;
+        }
+        return distance(lat, lon, onSegment, meridian);
+    }
+
+    private static double angle(double a, double b) {
+        double diff = Math.abs(a - b) % 360;
+        return diff > 180 ? 360 - diff : diff;
+    }
+}
@@ -0,0 +1,142 @@
+package com.msci.moslem.util;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of positive values, latencies in nanoseconds or hit
+ * counts. Each power of two is split in 8 buckets, so percentiles are exact
+ * to about 12%.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = 61 * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0),
+            total = new AtomicLong(0),
+            max = new AtomicLong(0);
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return current values. Records made while taking it may be partially
+     *         included.
+     */
+    public Snapshot getSnapshot() {
+        long n = count.get();
+        return new Snapshot(n, n == 0 ? 0 : (double) total.get() / n,
+                percentile(n, 0.5), percentile(n, 0.9), percentile(n, 0.99),
+                max.get());
+    }
+
+    private long percentile(long n, double p) {
+        long rank = (long) Math.ceil(n * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exp - 3)) & (SUB_BUCKETS - 1));
+        return (exp - 2) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + 2;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exp - 3)) - 1;
+    }
+
+    /**
+     * Values of a histogram at one point in time.
+     */
+    public static class Snapshot {
+
+        private final long count;
+        private final double mean;
+        private final long p50, p90, p99, max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "max"})
+        public Snapshot(long count, double mean, long p50, long p90, long p99,
+                        long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + mean + ", p50=" + p50
+                    + ", p90=" + p90 + ", p99=" + p99 + ", max=" + max;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.msci.moslem.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of a batch run by {@link ImageBatchResizer}, one per source image,
+ * in the order the images completed.
+ */
+public class ImageBatchReport {
+
+    private final List<ImageBatchResult> results;
+    private final long elapsedNanos;
+
+    ImageBatchReport(List<ImageBatchResult> results, long elapsedNanos) {
+        this.results = Collections.unmodifiableList(results);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public List<ImageBatchResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return results of the images that failed.
+     */
+    public List<ImageBatchResult> getFailures() {
+        List<ImageBatchResult> failures = new ArrayList<ImageBatchResult>();
+        for (ImageBatchResult result : results) {
+            if (result.isFailed()) {
+                failures.add(result);
+            }
+        }
+        return failures;
+    }
+
+    public int getImages() {
+        return results.size();
+    }
+
+    public int getFailed() {
+        int n = 0;
+        for (ImageBatchResult result : results) {
+            if (result.isFailed()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return wall clock time of the batch, in milliseconds.
+     */
+    public double getElapsedMillis() {
+        return elapsedNanos / 1e6;
+    }
+
+    /**
+     * @return source images processed per second.
+     */
+    public double getImagesPerSecond() {
+        return elapsedNanos > 0 ? results.size() * 1e9 / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d images, %d failed, %.0f ms, %.1f images/s",
+                getImages(), getFailed(), getElapsedMillis(), getImagesPerSecond());
+    }
+}
@@ -0,0 +1,391 @@
+package com.msci.moslem.util;
+
+import net.coobird.thumbnailator.Thumbnails;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resizes batches of images to several outputs each, on a pool of worker
+ * threads.
+ * <p/>
+ * Each source is decoded once, then every {@link ImageSpec} is rendered from
+ * the decoded image. Sources are queued in a bounded queue, the caller
+ * resizes images itself when it is full, so reading a large directory or
+ * stream of files never runs far ahead of the workers and at most threads +
+ * 1 decoded images are held in memory.
+ * <p/>
+ * A source that fails is reported in the {@link ImageBatchReport}, the
+ * batch goes on with the others.
+ * <p/>
+ * A decoded image takes 4 bytes per pixel, 200 MB for a 50 megapixel photo.
+ * With {@link #setSubsampling(boolean)} sources are decoded at the lowest
+ * resolution the specs need, so memory use follows the size of the outputs
+ * rather than of the sources. {@link #setPixelGuard(long, OversizePolicy)}
+ * rejects or downsamples sources over a pixel count, from their header,
+ * before decoding them.
+ * <pre>
+ * ImageBatchResizer resizer = new ImageBatchResizer();
+ * resizer.setSpecs(ImageSpec.builder().size(160, 160).format("jpg").build(),
+ *         ImageSpec.builder().size(640, 640).format("jpg").quality(0.85f).build());
+ * ImageBatchReport report = resizer.resize(uploadDir, thumbnailDir);
+ * </pre>
+ */
+public class ImageBatchResizer {
+
+    /**
+     * What to do with a source over the pixel guard.
+     */
+    public enum OversizePolicy {
+        /**
+         * Fail the source without decoding it.
+         */
+        REJECT,
+        /**
+         * Decode it subsampled, down to the pixel count of the guard.
+         */
+        DOWNSAMPLE
+    }
+
+    // Subsampled sources are decoded at least at twice the size of the
+    // largest box output, Thumbnailator then scales them down smoothly.
+    // Scale outputs are decoded at their size: with oversampling, a 0.5
+    // scale could never be subsampled.
+    private static final int OVERSAMPLING = 2;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueSize = 0;
+    private final List<ImageSpec> specs = new ArrayList<ImageSpec>();
+    private ThumbnailCache cache;
+    private boolean subsampling;
+    private long maxPixels;
+    private OversizePolicy oversizePolicy = OversizePolicy.REJECT;
+
+    /**
+     * @param threads number of worker threads, defaults to the number of
+     *                processors.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param queueSize max number of sources waiting for a worker, zero for
+     *                  twice the number of threads.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Outputs to make from each source.
+     */
+    public void setSpecs(ImageSpec... specs) {
+        setSpecs(Arrays.asList(specs));
+    }
+
+    public void setSpecs(List<ImageSpec> specs) {
+        this.specs.clear();
+        this.specs.addAll(specs);
+    }
+
+    /**
+     * @param cache outputs already rendered for the same content are copied
+     *              from it instead, null for none. The time spent in the
+     *              cache counts as render time.
+     */
+    public void setCache(ThumbnailCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param subsampling true to decode sources at the lowest resolution the
+     *                    specs need, by reading one pixel in n along each
+     *                    axis. Faster and much smaller for thumbnails of
+     *                    large sources, at a small cost in smoothness.
+     */
+    public void setSubsampling(boolean subsampling) {
+        this.subsampling = subsampling;
+    }
+
+    /**
+     * Guard against sources too large to decode, by their pixel count.
+     *
+     * @param maxPixels max width x height, 0 for no guard.
+     * @param policy    reject larger sources, or decode them downsampled.
+     */
+    public void setPixelGuard(long maxPixels, OversizePolicy policy) {
+        this.maxPixels = maxPixels;
+        this.oversizePolicy = policy;
+    }
+
+    /**
+     * Resize an image, or all images under a directory. Outputs are written
+     * under outputDir in the same subdirectories as their source. Files
+     * ImageIO has no reader for, by their extension, are skipped.
+     *
+     * @param input     image file or directory.
+     * @param outputDir directory to write outputs into, created if needed.
+     * @throws IOException input not found, or failed to list it.
+     */
+    public ImageBatchReport resize(File input, File outputDir) throws IOException {
+        if (!input.exists()) {
+            throw new IOException("Input not found: " + input);
+        }
+        Set<String> suffixes = new HashSet<String>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase(Locale.ENGLISH));
+        }
+
+        Batch batch = new Batch();
+        FileTreeWalker walker = new FileTreeWalker(input, FileTreeWalker.SymlinkPolicy.FOLLOW);
+        boolean listed = false;
+        try {
+            while (walker.next()) {
+                String name = walker.getName();
+                if (walker.getType() != FileTreeWalker.Type.FILE || !suffixes.contains(suffixOf(name))) {
+                    continue;
+                }
+                int slash = name.lastIndexOf('/');
+                batch.submit(walker.getFile(),
+                        slash < 0 ? outputDir : new File(outputDir, name.substring(0, slash)));
+            }
+            listed = true;
+        } finally {
+            walker.close();
+            if (!listed) {
+                batch.abort();
+            }
+        }
+        return batch.finish();
+    }
+
+    /**
+     * Resize images, all outputs written into outputDir. The inputs are read
+     * as workers are ready for them, they can come from a lazy source.
+     *
+     * @param inputs    image files.
+     * @param outputDir directory to write outputs into, created if needed.
+     */
+    public ImageBatchReport resize(Iterable<File> inputs, File outputDir) {
+        Batch batch = new Batch();
+        for (File input : inputs) {
+            batch.submit(input, outputDir);
+        }
+        return batch.finish();
+    }
+
+    /**
+     * Decode a source image for some specs. Its size is read from the header
+     * first, to check it against the pixel guard and to pick the
+     * subsampling.
+     *
+     * @throws IOException failed to read, not an image ImageIO can decode,
+     *                     or rejected by the pixel guard.
+     */
+    protected SourceImage decode(File file, List<ImageSpec> specs) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        if (in == null) {
+            throw new IOException("Can not read " + file);
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+
+                int factor = subsampling ? subsampling(width, height, specs) : 1;
+                if (maxPixels > 0 && (long) width * height > maxPixels) {
+                    if (oversizePolicy == OversizePolicy.REJECT) {
+                        throw new IOException("Image too large: " + width + "x" + height
+                                + " pixels, " + file);
+                    }
+                    factor = Math.max(factor,
+                            (int) Math.sqrt((double) width * height / maxPixels));
+                    while ((long) ((width + factor - 1) / factor) * ((height + factor - 1) / factor) > maxPixels) {
+                        factor++;
+                    }
+                }
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return new SourceImage(reader.read(0, param), width, height);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Largest subsampling keeping the decoded image at least the size of
+     * every scale output, and OVERSAMPLING times the size of every box
+     * output.
+     */
+    private static int subsampling(int width, int height, List<ImageSpec> specs) {
+        int factor = Integer.MAX_VALUE;
+        for (ImageSpec spec : specs) {
+            int[] size = spec.outputSize(width, height);
+            int oversampling = spec.getScale() > 0 ? 1 : OVERSAMPLING;
+            factor = Math.min(factor, Math.min(width / (size[0] * oversampling),
+                    height / (size[1] * oversampling)));
+        }
+        return Math.max(1, factor);
+    }
+
+    /**
+     * Resize a decoded image to one spec and write it.
+     */
+    protected void render(SourceImage source, ImageSpec spec, File output) throws IOException {
+        Thumbnails.Builder<BufferedImage> builder = Thumbnails.of(source.getImage());
+        if (spec.getScale() > 0 && source.isSubsampled()) {
+            // Scale is relative to the source, not to the decoded image.
+            int[] size = spec.outputSize(source.getSourceWidth(), source.getSourceHeight());
+            builder.forceSize(size[0], size[1]);
+        } else if (spec.getScale() > 0) {
+            builder.scale(spec.getScale());
+        } else {
+            builder.size(spec.getWidth(), spec.getHeight());
+        }
+        builder.outputFormat(spec.getFormat());
+        if (spec.getQuality() >= 0) {
+            builder.outputQuality(spec.getQuality());
+        }
+        if (spec.isOpaqueFormat()) {
+            // JPEG writers reject images with an alpha channel.
+            builder.imageType(BufferedImage.TYPE_INT_RGB);
+        }
+        builder.toFile(output);
+    }
+
+    private static String suffixOf(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Pool and results of one batch.
+     */
+    private class Batch {
+
+        private final long start = System.nanoTime();
+        private final Queue<ImageBatchResult> results = new ConcurrentLinkedQueue<ImageBatchResult>();
+        private final ThreadPoolExecutor pool;
+
+        Batch() {
+            if (specs.isEmpty()) {
+                throw new IllegalStateException("No ImageSpec set");
+            }
+            final AtomicInteger counter = new AtomicInteger();
+            pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize > 0 ? queueSize : threads * 2),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "ImageBatchResizer-" + counter.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        void submit(final File source, final File outputDir) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    results.add(process(source, outputDir));
+                }
+            });
+        }
+
+        void abort() {
+            pool.shutdownNow();
+        }
+
+        ImageBatchReport finish() {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            return new ImageBatchReport(new ArrayList<ImageBatchResult>(results),
+                    System.nanoTime() - start);
+        }
+    }
+
+    private ImageBatchResult process(File source, File outputDir) {
+        List<File> outputs = new ArrayList<File>();
+        long start = System.nanoTime();
+        long decoded = 0;
+        try {
+            if (cache != null) {
+                outputDir.mkdirs();
+                List<File> targets = new ArrayList<File>();
+                for (ImageSpec spec : specs) {
+                    targets.add(new File(outputDir, spec.outputName(source.getName())));
+                }
+                cache.copyTo(source, specs, targets);
+                outputs.addAll(targets);
+                return new ImageBatchResult(source, outputs, 0, System.nanoTime() - start, null);
+            }
+
+            SourceImage image = decode(source, specs);
+            decoded = System.nanoTime();
+
+            outputDir.mkdirs();
+            for (ImageSpec spec : specs) {
+                File output = new File(outputDir, spec.outputName(source.getName()));
+                render(image, spec, output);
+                outputs.add(output);
+            }
+            return new ImageBatchResult(source, outputs, decoded - start,
+                    System.nanoTime() - decoded, null);
+        } catch (Exception e) {
+            return failed(source, outputs, start, decoded, e);
+        } catch (OutOfMemoryError e) {
+            // The decoded image is unreachable now, the batch can go on.
+            return failed(source, outputs, start, decoded,
+                    new IOException("Not enough memory to resize " + source, e));
+        }
+    }
+
+    private static ImageBatchResult failed(File source, List<File> outputs, long start, long decoded,
+                                           Exception e) {
+        long end = System.nanoTime();
+        return decoded == 0
+                ? new ImageBatchResult(source, outputs, end - start, 0, e)
+                : new ImageBatchResult(source, outputs, decoded - start, end - decoded, e);
+    }
+}
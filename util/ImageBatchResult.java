@@ -0,0 +1,75 @@
+package com.msci.moslem.util;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of one source image of a batch: outputs written and time spent,
+ * or why it failed.
+ */
+public class ImageBatchResult {
+
+    private final File source;
+    private final List<File> outputs;
+    private final long decodeNanos;
+    private final long renderNanos;
+    private final Exception failure;
+
+    ImageBatchResult(File source, List<File> outputs, long decodeNanos, long renderNanos,
+                     Exception failure) {
+        this.source = source;
+        this.outputs = Collections.unmodifiableList(outputs);
+        this.decodeNanos = decodeNanos;
+        this.renderNanos = renderNanos;
+        this.failure = failure;
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    /**
+     * @return outputs written, in the order of the specs. Some may be
+     *         missing if the image failed.
+     */
+    public List<File> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * @return time spent reading and decoding the source, in milliseconds.
+     */
+    public double getDecodeMillis() {
+        return decodeNanos / 1e6;
+    }
+
+    /**
+     * @return time spent resizing and writing all outputs, in milliseconds.
+     */
+    public double getRenderMillis() {
+        return renderNanos / 1e6;
+    }
+
+    public double getTotalMillis() {
+        return (decodeNanos + renderNanos) / 1e6;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * @return why the image failed, null if it did not.
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s, decode %.1f ms, render %.1f ms", source,
+                failure != null ? "failed (" + failure + ")" : outputs.size() + " outputs",
+                getDecodeMillis(), getRenderMillis());
+    }
+}
@@ -6,6 +6,7 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 
 /**
  * This class provides function for resizing images. We use Thumbnailator
@@ -13,11 +14,20 @@ import java.io.IOException;
  *
  * @author Rakhmad Azhari <r.azhari@samsung.com>
  * @version 0.0.1
+ * @version 0.0.2 - Adding batch resizing.
+ * @version 0.0.3 - Adding thumbnail cache.
+ * @version 0.0.4 - Adding memory-bounded decoding.
  */
 public class ImageHelper {
 
     private static ImageHelper instance;
+    private static final ImageSpec HALF_PNG = ImageSpec.builder().scale(0.5).format("png").build();
+
     private String input, output;
+    private ThumbnailCache cache;
+    private boolean subsampling;
+    private long maxPixels;
+    private ImageBatchResizer.OversizePolicy oversizePolicy = ImageBatchResizer.OversizePolicy.REJECT;
 
     private ImageHelper() {
     }
@@ -45,8 +55,71 @@ public class ImageHelper {
         this.input = input;
     }
 
+    /**
+     * Share resized images between calls: with a cache, resizeWithScale() and resizeBatch()
+     * only decode and resize images whose content they have not resized before. The cache
+     * decodes with the settings of its own renderer.
+     *
+     * @param cache cache to use, null for none.
+     */
+    public void setCache(ThumbnailCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Decode images at the lowest resolution their outputs need, instead of at full resolution.
+     * Memory then follows the size of the outputs rather than the size of the images.
+     */
+    public void setSubsampling(boolean subsampling) {
+        this.subsampling = subsampling;
+    }
+
+    /**
+     * Refuse images over maxPixels (width x height), or decode them downsampled, checked from
+     * their header before decoding. 0 for no limit.
+     */
+    public void setPixelGuard(long maxPixels, ImageBatchResizer.OversizePolicy policy) {
+        this.maxPixels = maxPixels;
+        this.oversizePolicy = policy;
+    }
+
     public void resizeWithScale() throws IOException {
+        if (cache != null) {
+            // Like Thumbnailator, append the extension if missing.
+            String target = output.toLowerCase().endsWith(".png") ? output : output + ".png";
+            cache.copyTo(new File(input), HALF_PNG, new File(target));
+            return;
+        }
+        if (subsampling || maxPixels > 0) {
+            ImageBatchResizer resizer = newResizer();
+            SourceImage sourceImage = resizer.decode(new File(input), Collections.singletonList(HALF_PNG));
+            resizer.render(sourceImage, HALF_PNG, new File(output));
+            return;
+        }
         BufferedImage sourceImage = ImageIO.read(new File(input));
         Thumbnails.of(sourceImage).scale(0.5f).outputFormat("png").toFile(output);
     }
+
+    /**
+     * Resize input, an image or a directory of images, to several outputs at once, written
+     * in the output directory. Each image is decoded once for all the specs, images are
+     * resized on as many threads as processors. See ImageBatchResizer.
+     *
+     * @param specs outputs to make from each image.
+     * @return timings of each image, and the images that failed.
+     * @throws IOException input not found.
+     */
+    public ImageBatchReport resizeBatch(ImageSpec... specs) throws IOException {
+        ImageBatchResizer resizer = newResizer();
+        resizer.setSpecs(specs);
+        resizer.setCache(cache);
+        return resizer.resize(new File(input), new File(output));
+    }
+
+    private ImageBatchResizer newResizer() {
+        ImageBatchResizer resizer = new ImageBatchResizer();
+        resizer.setSubsampling(subsampling);
+        resizer.setPixelGuard(maxPixels, oversizePolicy);
+        return resizer;
+    }
 }
@@ -0,0 +1,191 @@
+package com.msci.moslem.util;
+
+import javax.imageio.ImageIO;
+import java.util.Locale;
+
+/**
+ * One output of {@link ImageBatchResizer}: how to resize the source, and the
+ * format and quality to write it in. Immutable.
+ * <pre>
+ * ImageSpec thumb = ImageSpec.builder().size(160, 160).format("jpg").quality(0.8f).build();
+ * ImageSpec half = ImageSpec.builder().scale(0.5).build();
+ * </pre>
+ */
+public final class ImageSpec {
+
+    private final double scale;
+    private final int width;
+    private final int height;
+    private final String format;
+    private final float quality;
+    private final String suffix;
+
+    private ImageSpec(Builder builder) {
+        this.scale = builder.scale;
+        this.width = builder.width;
+        this.height = builder.height;
+        this.format = builder.format;
+        this.quality = builder.quality;
+        this.suffix = builder.suffix != null ? builder.suffix
+                : width > 0 ? "_" + width + "x" + height : "_x" + scale;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return scale factor, 0 when resized to fit a box.
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * @return width of the box the image is resized to fit, 0 when scaled.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the box the image is resized to fit, 0 when scaled.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return output format, as known to ImageIO: png, jpg, ...
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @return output quality from 0 to 1, negative for the default of the
+     *         format.
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * @return appended to the name of the source to name the output.
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * @return true if the format has no alpha channel, like JPEG.
+     */
+    public boolean isOpaqueFormat() {
+        return "jpg".equals(format) || "jpeg".equals(format) || "bmp".equals(format);
+    }
+
+    /**
+     * Width and height of the output for a source image, keeping its aspect
+     * ratio, at least 1 pixel each.
+     */
+    public int[] outputSize(int sourceWidth, int sourceHeight) {
+        double factor = scale > 0 ? scale
+                : Math.min((double) width / sourceWidth, (double) height / sourceHeight);
+        return new int[]{
+                Math.max(1, (int) Math.round(sourceWidth * factor)),
+                Math.max(1, (int) Math.round(sourceHeight * factor))
+        };
+    }
+
+    /**
+     * Name of the output for a source file name: base name, suffix and
+     * extension of the format.
+     */
+    public String outputName(String sourceName) {
+        int dot = sourceName.lastIndexOf('.');
+        String base = dot > 0 ? sourceName.substring(0, dot) : sourceName;
+        return base + suffix + "." + format;
+    }
+
+    @Override
+    public String toString() {
+        return (scale > 0 ? "scale " + scale : width + "x" + height) + " " + format
+                + (quality >= 0 ? " q" + quality : "");
+    }
+
+    public static class Builder {
+
+        private double scale = 0.5;
+        private int width;
+        private int height;
+        private String format = "png";
+        private float quality = -1;
+        private String suffix;
+
+        private Builder() {
+        }
+
+        /**
+         * Scale both sides by a factor, 0.5 by default.
+         */
+        public Builder scale(double scale) {
+            if (scale <= 0) {
+                throw new IllegalArgumentException("scale must be positive");
+            }
+            this.scale = scale;
+            this.width = 0;
+            this.height = 0;
+            return this;
+        }
+
+        /**
+         * Resize to fit in a box, keeping the aspect ratio.
+         */
+        public Builder size(int width, int height) {
+            if (width < 1 || height < 1) {
+                throw new IllegalArgumentException("width and height must be at least 1");
+            }
+            this.width = width;
+            this.height = height;
+            this.scale = 0;
+            return this;
+        }
+
+        /**
+         * Output format, png by default.
+         *
+         * @throws IllegalArgumentException ImageIO has no writer for it.
+         */
+        public Builder format(String format) {
+            if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+                throw new IllegalArgumentException("Unsupported image format: " + format);
+            }
+            this.format = format.toLowerCase(Locale.ENGLISH);
+            return this;
+        }
+
+        /**
+         * Output quality from 0 to 1, for formats that have one like JPEG.
+         */
+        public Builder quality(float quality) {
+            if (quality < 0 || quality > 1) {
+                throw new IllegalArgumentException("quality must be between 0 and 1");
+            }
+            this.quality = quality;
+            return this;
+        }
+
+        /**
+         * Appended to the source name to name the output, by default "_"
+         * and the box size or the scale: photo_160x160.jpg, photo_x0.5.png.
+         */
+        public Builder suffix(String suffix) {
+            this.suffix = suffix;
+            return this;
+        }
+
+        public ImageSpec build() {
+            return new ImageSpec(this);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.msci.moslem.util;
+
+import com.msci.moslem.bean.CityBean;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory spatial engine for city lookups, an alternative to the Lucene
+ * index when only locations are needed to answer the query.
+ * <p/>
+ * Cities are kept as a k-d tree over points on the unit sphere (x, y, z), in
+ * parallel primitive arrays: no object per city. Straight-line distance on the
+ * sphere grows with great-circle distance, so the tree needs no special case
+ * for the poles or the date line. Lookups do not allocate, only the cities
+ * returned are materialized, through a {@link CityResolver}.
+ * <p/>
+ * The engine is immutable and can be shared between threads. Build a new one
+ * to pick up index changes, see {@link CityLuceneHelper#buildInMemoryEngine()}.
+ */
+public class InMemoryCityEngine implements CitySpatialEngine {
+
+    /**
+     * Default result limit of a radius query, same as Lucene.
+     */
+    public static final int DEFAULT_RESULT_LIMIT = 100;
+
+    /**
+     * Loads the full city of an id, for the results of a lookup.
+     */
+    public interface CityResolver {
+
+        CityBean getCity(long id) throws IOException;
+    }
+
+    private final int size;
+    private final int resultLimit;
+    private final long[] ids;
+    // x, y, z of each city, one after another.
+    private final double[] coords;
+    // Split axis of each node.
+    private final byte[] axes;
+
+    private final CityResolver resolver;
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * Build the engine, with the default result limit.
+     */
+    public InMemoryCityEngine(long[] ids, double[] lats, double[] lons, int size,
+                              CityResolver resolver) {
+        this(ids, lats, lons, size, DEFAULT_RESULT_LIMIT, resolver);
+    }
+
+    /**
+     * Build the engine. Arrays are copied, so the caller may reuse them.
+     *
+     * @param ids         id of each city.
+     * @param lats        latitude of each city.
+     * @param lons        longitude of each city.
+     * @param size        number of cities in the arrays.
+     * @param resultLimit max number of cities returned by a radius query.
+     * @param resolver    loads the cities returned by lookups.
+     */
+    public InMemoryCityEngine(long[] ids, double[] lats, double[] lons, int size,
+                              int resultLimit, CityResolver resolver) {
+        this.size = size;
+        this.resultLimit = resultLimit;
+        this.resolver = resolver;
+        this.ids = new long[size];
+        this.coords = new double[size * 3];
+        this.axes = new byte[size];
+
+        double[] points = new double[size * 3];
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            toPoint(lats[i], lons[i], points, i * 3);
+            order[i] = i;
+        }
+
+        build(order, points, 0, size);
+
+        // Store cities in tree order.
+        for (int i = 0; i < size; i++) {
+            int city = order[i];
+            this.ids[i] = ids[city];
+            System.arraycopy(points, city * 3, coords, i * 3, 3);
+        }
+    }
+
+    /**
+     * @return number of cities in the engine.
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public List<CityBean> getNearbyCities(double lat, double lon, double miles)
+            throws IOException {
+        Scratch s = search(lat, lon, resultLimit, toChord2(miles));
+        List<CityBean> cityList = new ArrayList<CityBean>(s.count);
+        for (int i = 0; i < s.count; i++) {
+            cityList.add(resolver.getCity(ids[s.nodes[i]]));
+        }
+        return cityList;
+    }
+
+    @Override
+    public CityBean getNearbyCities(double lat, double lon) throws IOException {
+        Scratch s = search(lat, lon, 1, Double.MAX_VALUE);
+        return s.count == 0 ? null : resolver.getCity(ids[s.nodes[0]]);
+    }
+
+    @Override
+    public List<NearbyCity> findNearest(double lat, double lon, int k)
+            throws IOException {
+        if (k < 1) {
+            return new ArrayList<NearbyCity>();
+        }
+        Scratch s = search(lat, lon, k, Double.MAX_VALUE);
+        List<NearbyCity> cityList = new ArrayList<NearbyCity>(s.count);
+        for (int i = 0; i < s.count; i++) {
+            cityList.add(new NearbyCity(resolver.getCity(ids[s.nodes[i]]),
+                    toMiles(s.distances[i])));
+        }
+        return cityList;
+    }
+
+    /**
+     * Find the id of the city nearest to a location, without materializing
+     * it.
+     *
+     * @return id of the nearest city, or -1 if the engine is empty.
+     */
+    public long findNearestId(double lat, double lon) {
+        Scratch s = search(lat, lon, 1, Double.MAX_VALUE);
+        return s.count == 0 ? -1 : ids[s.nodes[0]];
+    }
+
+    /**
+     * Run a k-nearest search. Results are left in the thread's scratch space,
+     * closest first, and stay valid until the next search on the same thread.
+     */
+    private Scratch search(double lat, double lon, int k, double maxChord2) {
+        Scratch s = scratch.get();
+        s.reset(k, maxChord2);
+        toPoint(lat, lon, s.query, 0);
+        if (size > 0) {
+            search(0, size, s);
+        }
+        s.sort();
+        return s;
+    }
+
+    private void search(int lo, int hi, Scratch s) {
+        double[] q = s.query;
+        while (lo < hi) {
+            int node = (lo + hi) >>> 1;
+            int base = node * 3;
+            double dx = coords[base] - q[0];
+            double dy = coords[base + 1] - q[1];
+            double dz = coords[base + 2] - q[2];
+            s.offer(node, dx * dx + dy * dy + dz * dz);
+
+            int axis = axes[node];
+            double diff = q[axis] - coords[base + axis];
+            // Nearer side first, the far side only if it can hold a closer city.
+            if (diff < 0) {
+                search(lo, node, s);
+                lo = node + 1;
+            } else {
+                search(node + 1, hi, s);
+                hi = node;
+            }
+            if (diff * diff >= s.bound()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Arrange order[lo..hi) as a balanced k-d tree: the median along the
+     * widest axis goes in the middle, smaller points before and larger after.
+     */
+    private void build(int[] order, double[] points, int lo, int hi) {
+        while (hi - lo > 1) {
+            int axis = widestAxis(order, points, lo, hi);
+            int mid = (lo + hi) >>> 1;
+            select(order, points, axis, lo, hi - 1, mid);
+            axes[mid] = (byte) axis;
+
+            build(order, points, lo, mid);
+            lo = mid + 1;
+        }
+    }
+
+    private static int widestAxis(int[] order, double[] points, int lo, int hi) {
+        int best = 0;
+        double bestSpread = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int i = lo; i < hi; i++) {
+                double value = points[order[i] * 3 + axis];
+                if (value < min) min = value;
+                if (value > max) max = value;
+            }
+            if (max - min > bestSpread) {
+                bestSpread = max - min;
+                best = axis;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Quickselect, puts the n-th smallest point along the axis at position n.
+     */
+    private static void select(int[] order, double[] points, int axis, int left,
+                               int right, int n) {
+        while (right > left) {
+            double pivot = points[order[(left + right) >>> 1] * 3 + axis];
+            int i = left, j = right;
+            while (i <= j) {
+                while (points[order[i] * 3 + axis] < pivot) i++;
+                while (points[order[j] * 3 + axis] > pivot) j--;
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (n <= j) {
+                right = j;
+            } else if (n >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static void toPoint(double lat, double lon, double[] point, int offset) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        double cosPhi = Math.cos(phi);
+        point[offset] = cosPhi * Math.cos(lambda);
+        point[offset + 1] = cosPhi * Math.sin(lambda);
+        point[offset + 2] = Math.sin(phi);
+    }
+
+    /**
+     * Squared straight-line distance on the unit sphere of a great-circle
+     * distance.
+     */
+    private static double toChord2(double miles) {
+        double angle = miles / GeoUtil.EARTH_RADIUS_MILES;
+        if (angle >= Math.PI) {
+            return Double.MAX_VALUE;
+        }
+        double chord = 2 * Math.sin(angle / 2);
+        return chord * chord;
+    }
+
+    private static double toMiles(double chord2) {
+        double half = Math.min(1, Math.sqrt(chord2) / 2);
+        return 2 * GeoUtil.EARTH_RADIUS_MILES * Math.asin(half);
+    }
+
+    /**
+     * Per-thread search state: the query point and a max-heap of the best
+     * nodes so far, reused across lookups.
+     */
+    private static class Scratch {
+
+        final double[] query = new double[3];
+        int[] nodes = new int[16];
+        double[] distances = new double[16];
+        int count, k;
+        double maxChord2;
+
+        void reset(int k, double maxChord2) {
+            if (nodes.length < k) {
+                nodes = new int[k];
+                distances = new double[k];
+            }
+            this.k = k;
+            this.maxChord2 = maxChord2;
+            count = 0;
+        }
+
+        double bound() {
+            return count < k ? maxChord2 : distances[0];
+        }
+
+        void offer(int node, double chord2) {
+            if (chord2 > maxChord2) {
+                return;
+            }
+            if (count < k) {
+                int i = count++;
+                // Sift up.
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (distances[parent] >= chord2) {
+                        break;
+                    }
+                    nodes[i] = nodes[parent];
+                    distances[i] = distances[parent];
+                    i = parent;
+                }
+                nodes[i] = node;
+                distances[i] = chord2;
+            } else if (chord2 < distances[0]) {
+                siftDown(0, count, node, chord2);
+            }
+        }
+
+        private void siftDown(int i, int end, int node, double chord2) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= end) {
+                    break;
+                }
+                if (child + 1 < end && distances[child + 1] > distances[child]) {
+                    child++;
+                }
+                if (distances[child] <= chord2) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            nodes[i] = node;
+            distances[i] = chord2;
+        }
+
+        /**
+         * Heap sort, leaves nodes ordered closest first.
+         */
+        void sort() {
+            for (int end = count - 1; end > 0; end--) {
+                int node = nodes[end];
+                double chord2 = distances[end];
+                nodes[end] = nodes[0];
+                distances[end] = distances[0];
+                siftDown(0, end, node, chord2);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package util;
+
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parser of yyyy-MM-dd dates to epoch millis at midnight in a time zone,
+ * giving the same millis as SimpleDateFormat("yyyy-MM-dd") for valid dates.
+ * <p/>
+ * Reads the digits in place and allocates nothing: bad input gives
+ * {@link #INVALID} instead of an exception. The millis of a date are
+ * computed once by a calendar, then found in a small cache of the dates
+ * seen last, as import columns repeat few distinct dates. Strict: exactly
+ * 4-2-2 digits and an existing date, unlike the lenient SimpleDateFormat.
+ * A parser {@link #followingDefaultZone()} looks the zone up once per call
+ * and clears its cache when the zone changes.
+ * <p/>
+ * Thread-safe, each thread has its own cache. {@link #parseAll} parses a
+ * whole column, large ones on several threads:
+ * <pre>
+ * IsoDateParser parser = new IsoDateParser();
+ * long[] millis = new long[column.length];
+ * int invalid = parser.parseAll(column, millis);
+ * </pre>
+ */
+public class IsoDateParser {
+
+    /**
+     * Returned for input that is not a valid yyyy-MM-dd date.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    // Dates cached per thread.
+    private static final int CACHE_BITS = 10;
+    private static final int CACHE_SIZE = 1 << CACHE_BITS;
+
+    // Values parsed by a worker at a time, parseAll() uses this thread below it.
+    private static final int CHUNK_SIZE = 65536;
+
+    private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    // Null to follow the default zone.
+    private final TimeZone zone;
+
+    private final ThreadLocal<Cache> cache = new ThreadLocal<Cache>() {
+        @Override
+        protected Cache initialValue() {
+            return new Cache();
+        }
+    };
+
+    /**
+     * Parser in the default time zone, as it is now.
+     */
+    public IsoDateParser() {
+        this(TimeZone.getDefault());
+    }
+
+    public IsoDateParser(TimeZone zone) {
+        this(zone, false);
+    }
+
+    private IsoDateParser(TimeZone zone, boolean followDefault) {
+        this.zone = followDefault ? null : (TimeZone) zone.clone();
+    }
+
+    /**
+     * Parser in the default time zone at each call, like a new
+     * SimpleDateFormat, even after TimeZone.setDefault().
+     */
+    public static IsoDateParser followingDefaultZone() {
+        return new IsoDateParser(null, true);
+    }
+
+    /**
+     * @return time zone of the dates, the default one now if following it.
+     */
+    public TimeZone getZone() {
+        return (TimeZone) zone().clone();
+    }
+
+    /**
+     * @return epoch millis of the date at midnight, or INVALID.
+     */
+    public long parse(CharSequence s) {
+        return s == null ? INVALID : parse(s, 0, s.length());
+    }
+
+    /**
+     * Parse s[start, end), such as a field of a CSV line.
+     *
+     * @return epoch millis of the date at midnight, or INVALID.
+     */
+    public long parse(CharSequence s, int start, int end) {
+        return parse(s, start, end, cache(zone()));
+    }
+
+    private static long parse(CharSequence s, int start, int end, Cache cache) {
+        if (end - start != 10 || s.charAt(start + 4) != '-' || s.charAt(start + 7) != '-') {
+            return INVALID;
+        }
+        int year = digits(s, start, 4);
+        int month = digits(s, start + 5, 2);
+        int day = digits(s, start + 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1) {
+            return INVALID;
+        }
+        return cache.millis(year, month, day);
+    }
+
+    /**
+     * Parse a column of dates, on several threads if it is large.
+     *
+     * @param column dates, null entries are invalid.
+     * @param millis receives the millis of each date, or INVALID.
+     * @return number of invalid dates.
+     */
+    public int parseAll(final CharSequence[] column, final long[] millis) {
+        if (millis.length < column.length) {
+            throw new IllegalArgumentException("millis is shorter than column");
+        }
+        // The same zone for the whole column.
+        final TimeZone zone = zone();
+        final AtomicInteger invalid = new AtomicInteger();
+        ParallelChunks.run(column.length, CHUNK_SIZE, Runtime.getRuntime().availableProcessors(),
+                new ParallelChunks.Chunk() {
+            @Override
+            public void run(int from, int to) {
+                invalid.addAndGet(parseAll(column, millis, from, to, cache(zone)));
+            }
+        });
+        return invalid.get();
+    }
+
+    /**
+     * Parse column[from, to) into millis[from, to), on this thread.
+     *
+     * @return number of invalid dates.
+     */
+    public int parseAll(CharSequence[] column, long[] millis, int from, int to) {
+        return parseAll(column, millis, from, to, cache(zone()));
+    }
+
+    private static int parseAll(CharSequence[] column, long[] millis, int from, int to, Cache cache) {
+        int invalid = 0;
+        for (int i = from; i < to; i++) {
+            CharSequence s = column[i];
+            long value = s == null ? INVALID : parse(s, 0, s.length(), cache);
+            millis[i] = value;
+            if (value == INVALID) {
+                invalid++;
+            }
+        }
+        return invalid;
+    }
+
+    private TimeZone zone() {
+        return zone != null ? zone : TimeZone.getDefault();
+    }
+
+    /**
+     * @return cache of this thread, for dates in the zone.
+     */
+    private Cache cache(TimeZone zone) {
+        Cache c = cache.get();
+        c.setZone(zone);
+        return c;
+    }
+
+    /**
+     * @return value of count decimal digits, -1 if one is not a digit.
+     */
+    private static int digits(CharSequence s, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    /**
+     * Dates seen last by a thread, direct mapped, and the calendar that
+     * computes the others, for the zone of the last call. Cleared when the
+     * zone changes.
+     */
+    private static class Cache {
+
+        private final int[] keys = new int[CACHE_SIZE];
+        private final long[] values = new long[CACHE_SIZE];
+        private final GregorianCalendar calendar = new GregorianCalendar();
+        private TimeZone zone;
+
+        void setZone(TimeZone zone) {
+            if (zone == this.zone) {
+                return;
+            }
+            if (!zone.equals(this.zone)) {
+                calendar.setTimeZone(zone);
+                Arrays.fill(keys, 0);
+            }
+            this.zone = zone;
+        }
+
+        long millis(int year, int month, int day) {
+            // Never 0, month and day are at least 1.
+            int key = year * 10000 + month * 100 + day;
+            int slot = (key * 0x9E3779B9) >>> (32 - CACHE_BITS);
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            int days = DAYS_IN_MONTH[month - 1];
+            if (month == 2 && calendar.isLeapYear(year)) {
+                days = 29;
+            }
+            if (day > days) {
+                return INVALID;
+            }
+            calendar.clear();
+            calendar.set(year, month - 1, day);
+            long millis = calendar.getTimeInMillis();
+            keys[slot] = key;
+            values[slot] = millis;
+            return millis;
+        }
+    }
+}
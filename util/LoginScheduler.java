@@ -0,0 +1,106 @@
+package util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs expensive password verifications on a few threads of their own, so a
+ * login spike uses at most that many processors and cannot starve the other
+ * request threads.
+ * <p/>
+ * Verifications wait in a bounded queue. When the queue is full, or one
+ * waits longer than the timeout, it is given up and reported as busy: the
+ * caller should answer "try again later" instead of piling up threads.
+ * <pre>
+ * LoginScheduler scheduler = new LoginScheduler(2, 64, 2000);
+ * passwordUtil.setLoginScheduler(scheduler);
+ * </pre>
+ */
+public class LoginScheduler {
+
+    private final ThreadPoolExecutor pool;
+    private final long timeoutMillis;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param threads       verifications running at the same time.
+     * @param queueSize     verifications waiting for a thread, at most.
+     * @param timeoutMillis time a caller waits for its verification.
+     */
+    public LoginScheduler(int threads, int queueSize, long timeoutMillis) {
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("threads and queueSize must be at least 1");
+        }
+        this.timeoutMillis = timeoutMillis;
+        final AtomicInteger counter = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LoginScheduler-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Run a verification and wait for its result.
+     *
+     * @return the result, or null if it was given up: queue full, timed
+     *         out or interrupted.
+     * @throws IllegalStateException the verification failed.
+     */
+    public <T> T run(Callable<T> verification) {
+        Future<T> future;
+        try {
+            future = pool.submit(verification);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            rejected.incrementAndGet();
+            return null;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return verifications waiting for a thread.
+     */
+    public int getQueued() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return verifications given up since the start.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
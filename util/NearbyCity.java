@@ -0,0 +1,29 @@
+package com.msci.moslem.util;
+
+import com.msci.moslem.bean.CityBean;
+
+/**
+ * A city returned by a nearest lookup, together with its great-circle
+ * distance to the searched location.
+ */
+public class NearbyCity {
+
+    private final CityBean city;
+    private final double distance;
+
+    public NearbyCity(CityBean city, double distance) {
+        this.city = city;
+        this.distance = distance;
+    }
+
+    public CityBean getCity() {
+        return city;
+    }
+
+    /**
+     * @return distance to the searched location, in miles.
+     */
+    public double getDistance() {
+        return distance;
+    }
+}
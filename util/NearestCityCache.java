@@ -0,0 +1,269 @@
+package com.msci.moslem.util;
+
+import com.msci.moslem.bean.CityBean;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of nearest city lookups. Locations are snapped to the center of a
+ * grid cell, so lookups from nearly the same location share one entry: the
+ * city nearest to the cell's center.
+ * <p/>
+ * Entries expire after a time to live and the least recently used entries are
+ * evicted once the cache is full. The cache is split in segments, each with
+ * its own lock, so concurrent lookups rarely wait for each other.
+ * <p/>
+ * Every invalidation starts a new generation. A lookup reads the generation
+ * before it searches, and its answer is not cached if the generation changed
+ * meanwhile: it may have been computed on cities that are gone.
+ */
+public class NearestCityCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final double cellSize;
+    private final long lonCells;
+    private final long timeToLive;
+    private final Segment[] segments;
+
+    private final AtomicLong generation = new AtomicLong(0);
+
+    private final AtomicLong hits = new AtomicLong(0),
+            misses = new AtomicLong(0),
+            evictions = new AtomicLong(0);
+
+    /**
+     * @param cellSize   size of a grid cell, in degrees.
+     * @param maxEntries maximum number of cached cells.
+     * @param timeToLive time to live of an entry in milliseconds, zero or
+     *                   negative never expires.
+     */
+    public NearestCityCache(double cellSize, int maxEntries, long timeToLive) {
+        if (cellSize <= 0 || cellSize > 180) {
+            throw new IllegalArgumentException("cellSize must be in (0, 180]");
+        }
+        this.cellSize = cellSize;
+        this.lonCells = (long) Math.ceil(360 / cellSize) + 1;
+        this.timeToLive = timeToLive;
+
+        int segmentSize = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * @return latitude of the center of the cell holding the location.
+     */
+    public double snapLatitude(double lat) {
+        return (Math.floor((lat + 90) / cellSize) + 0.5) * cellSize - 90;
+    }
+
+    /**
+     * @return longitude of the center of the cell holding the location.
+     */
+    public double snapLongitude(double lon) {
+        return (Math.floor((lon + 180) / cellSize) + 0.5) * cellSize - 180;
+    }
+
+    /**
+     * Get the cached nearest city of the cell holding the location.
+     *
+     * @return cached city, or null if not cached or expired.
+     */
+    public CityBean get(double lat, double lon) {
+        long key = key(lat, lon);
+        Segment segment = segmentOf(key);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && timeToLive > 0
+                    && System.currentTimeMillis() > entry.expiresAt) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.city;
+    }
+
+    /**
+     * @return current generation, to pass to
+     *         {@link #put(double, double, NearbyCity, long)}.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Cache the city nearest to the center of the cell holding the location.
+     *
+     * @param nearest nearest city to the center of the cell, see
+     *                {@link #snapLatitude(double)} and {@link #snapLongitude(double)}.
+     */
+    public void put(double lat, double lon, NearbyCity nearest) {
+        put(lat, lon, nearest, generation.get());
+    }
+
+    /**
+     * Cache the city nearest to the center of the cell holding the location,
+     * unless the cache was invalidated since the generation was read.
+     *
+     * @param generation generation read before the nearest city was searched.
+     */
+    public void put(double lat, double lon, NearbyCity nearest, long generation) {
+        long key = key(lat, lon);
+        Entry entry = new Entry(snapLatitude(lat), snapLongitude(lon),
+                nearest.getCity(), nearest.getDistance(),
+                System.currentTimeMillis() + timeToLive);
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            // Checked under the lock: an invalidation either sees the entry
+            // and drops it, or bumped the generation before.
+            if (generation != this.generation.get()) {
+                return;
+            }
+            segment.put(key, entry);
+        }
+    }
+
+    /**
+     * Cities were added or removed: drop, in one pass, every cell for which
+     * an added city is now closer than the cached city, and every cell a
+     * removed city was cached for.
+     *
+     * @param addedLocations latitude and longitude of each added city, one
+     *                       after another: lat0, lon0, lat1, lon1, ...
+     * @param removedIds     ids of the removed or moved cities.
+     */
+    public void invalidate(double[] addedLocations, Set<Long> removedIds) {
+        generation.incrementAndGet();
+        if (addedLocations.length == 0 && removedIds.isEmpty()) {
+            return;
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                Iterator<Entry> it = segment.values().iterator();
+                while (it.hasNext()) {
+                    if (isAffected(it.next(), addedLocations, removedIds)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop every entry.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of cached cells, expired ones included until looked up
+     *         or evicted.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private static boolean isAffected(Entry entry, double[] addedLocations,
+                                      Set<Long> removedIds) {
+        if (removedIds.contains(entry.city.getId())) {
+            return true;
+        }
+        for (int i = 0; i < addedLocations.length; i += 2) {
+            if (GeoUtil.distance(entry.lat, entry.lon, addedLocations[i],
+                    addedLocations[i + 1]) <= entry.distance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long key(double lat, double lon) {
+        long latCell = (long) Math.floor((lat + 90) / cellSize);
+        long lonCell = (long) Math.floor((lon + 180) / cellSize);
+        return latCell * lonCells + lonCell;
+    }
+
+    private Segment segmentOf(long key) {
+        // Spread neighbouring cells over different segments.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return segments[(int) (h >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private static class Entry {
+
+        final double lat, lon;
+        final CityBean city;
+        final double distance;
+        final long expiresAt;
+
+        Entry(double lat, double lon, CityBean city, double distance, long expiresAt) {
+            this.lat = lat;
+            this.lon = lon;
+            this.city = city;
+            this.distance = distance;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * LRU map of one segment, guarded by its own monitor.
+     */
+    private class Segment extends LinkedHashMap<Long, Entry> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a task over a range of indexes cut in chunks, on the common fork-join
+ * pool and the calling thread. No thread is created per call.
+ * <p/>
+ * Workers take the next chunk as they finish one, so a slow chunk does not
+ * hold the others back. The calling thread works too, and returns once every
+ * chunk is done.
+ */
+final class ParallelChunks {
+
+    /**
+     * Work on the indexes [from, to) of the range.
+     */
+    interface Chunk {
+
+        void run(int from, int to);
+    }
+
+    private ParallelChunks() {
+    }
+
+    /**
+     * @param size        number of indexes, run on this thread alone up to
+     *                    chunkSize.
+     * @param chunkSize   indexes per chunk.
+     * @param parallelism threads working at most, this one included.
+     * @throws RuntimeException the first one a chunk threw, once the
+     *                          chunks started are done. The others are
+     *                          skipped.
+     */
+    static void run(final int size, final int chunkSize, int parallelism, final Chunk chunk) {
+        if (size <= chunkSize || parallelism <= 1) {
+            chunk.run(0, size);
+            return;
+        }
+
+        final int chunks = (size + chunkSize - 1) / chunkSize;
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < chunks) {
+                        chunk.run(i * chunkSize, (int) Math.min(size, (long) (i + 1) * chunkSize));
+                    }
+                } catch (RuntimeException e) {
+                    // Skip the chunks left.
+                    next.set(chunks);
+                    throw e;
+                }
+            }
+        };
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+        for (int i = 1; i < Math.min(parallelism, chunks); i++) {
+            tasks.add(ForkJoinPool.commonPool().submit(worker));
+        }
+        RuntimeException failure = null;
+        try {
+            worker.run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
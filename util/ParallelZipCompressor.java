@@ -0,0 +1,920 @@
+package com.msci.moslem.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Creates a ZIP archive with entries deflated concurrently on a pool of
+ * worker threads.
+ * <p/>
+ * Files are cut in chunks, each chunk is deflated on its own with the last 32
+ * KB of the previous chunk as dictionary, so the compression ratio stays
+ * close to a single deflate stream. Chunks end on a sync flush and are
+ * simply concatenated, the CRC of the entry is combined from the CRCs of its
+ * chunks. The caller thread writes the compressed chunks in order through a
+ * {@link ZipArchiveWriter}.
+ * <p/>
+ * Memory use is bounded: at most maxInFlight chunks are read or compressed
+ * but not yet written.
+ * <p/>
+ * Encrypted entries use the traditional PKWARE encryption, like
+ * {@link GZipHelper} with Zip4J's ENC_METHOD_STANDARD. Its header needs the
+ * CRC of the entry before any data, and its keys change with every byte. An
+ * entry of a single chunk is encrypted by its worker. A larger entry gets its
+ * CRC computed by a worker first, then is encrypted by the writer thread as
+ * chunks come in.
+ * <p/>
+ * With a {@link CompressionPolicy}, each entry is stored or deflated at the
+ * level the policy picks, see {@link #getReport()}. An entry of a single
+ * chunk is sampled by its worker, a larger one by the caller thread before
+ * its chunks are submitted.
+ * <p/>
+ * {@link #update(File, File)} rebuilds an archive incrementally: entries of
+ * files unchanged since the last update are copied as stored, still
+ * compressed and encrypted, from the previous archive.
+ */
+public class ParallelZipCompressor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelZipCompressor.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxInFlight = 0;
+    private int level = 5;
+    private char[] password;
+    private ArchiveProgressTracker tracker = new ArchiveProgressTracker(null, 0);
+    private CompressionPolicy policy;
+    private CompressionReport report;
+    private FileTreeWalker.SymlinkPolicy symlinkPolicy = FileTreeWalker.SymlinkPolicy.FOLLOW;
+    private int copiedEntries, compressedEntries, droppedEntries;
+    private IOException rebuildCause;
+
+    /**
+     * @param threads number of worker threads, defaults to the number of
+     *                processors.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param chunkSize size of the chunks files are cut in, at least 64 KB.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 64 * 1024) {
+            throw new IllegalArgumentException("chunkSize must be at least 64 KB");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param maxInFlight max number of chunks held in memory, zero for twice
+     *                    the number of threads.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param level deflate level, 0 to 9.
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * @param password password of the entries, null for no encryption.
+     */
+    public void setPassword(char[] password) {
+        this.password = password == null ? null : password.clone();
+    }
+
+    /**
+     * @param symlinkPolicy how symbolic links are archived, FOLLOW by
+     *                      default. PRESERVE stores them as links, like
+     *                      Info-ZIP's zip -y.
+     */
+    public void setSymlinkPolicy(FileTreeWalker.SymlinkPolicy symlinkPolicy) {
+        this.symlinkPolicy = symlinkPolicy;
+    }
+
+    /**
+     * @param policy picks the compression of each entry, null to deflate
+     *               everything at the level set.
+     */
+    public void setCompressionPolicy(CompressionPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @return decisions of the compression policy over the last archive,
+     *         null if no policy was set.
+     */
+    public CompressionReport getReport() {
+        return report;
+    }
+
+    /**
+     * @return file entries copied from the previous archive by the last
+     *         update.
+     */
+    public int getCopiedEntries() {
+        return copiedEntries;
+    }
+
+    /**
+     * @return file entries compressed by the last archive or update.
+     */
+    public int getCompressedEntries() {
+        return compressedEntries;
+    }
+
+    /**
+     * @return file entries of the previous archive left out by the last
+     *         update, their file was deleted.
+     */
+    public int getDroppedEntries() {
+        return droppedEntries;
+    }
+
+    /**
+     * @return why the last update rebuilt the archive from scratch although
+     *         it had a manifest: the archive or manifest could not be read.
+     *         Null otherwise.
+     */
+    public IOException getRebuildCause() {
+        return rebuildCause;
+    }
+
+    /**
+     * Progress and cancellation of an async job.
+     */
+    void setTracker(ArchiveProgressTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * Archive a file or the content of a directory. Entry names are relative
+     * to the directory, which is not included itself.
+     *
+     * @param input  file or directory to archive.
+     * @param output archive to create.
+     * @throws IOException input not found, or failed to read or write.
+     */
+    public void compress(File input, File output) throws IOException {
+        if (!input.exists()) {
+            throw new IOException("Input not found: " + input);
+        }
+        run(input, output, null, null);
+    }
+
+    /**
+     * Bring an archive up to date with a file or directory, like
+     * {@link #compress(File, File)} but reusing what did not change.
+     * <p/>
+     * The archive gets a sidecar {@link ArchiveManifest} listing size, last
+     * modification time and SHA-256 of each file. On the next update, a file
+     * with the same size and time, or the same size and SHA-256, has its
+     * entry copied as stored from the previous archive, without inflating or
+     * deflating it again. New and modified files are compressed, deleted
+     * ones are left out. Copied entries keep the compression they had, a
+     * level or policy set since applies to new and modified files only.
+     * <p/>
+     * Without a manifest, or if the archive or manifest cannot be read, the
+     * archive is rebuilt from scratch, see {@link #getRebuildCause()}. The new archive is written next to
+     * the previous one, which is replaced only once the update is complete.
+     *
+     * @param input   file or directory to archive.
+     * @param archive archive to update or create.
+     * @throws IOException input not found, or failed to read or write.
+     */
+    public void update(File input, File archive) throws IOException {
+        if (!input.exists()) {
+            throw new IOException("Input not found: " + input);
+        }
+
+        File manifestFile = ArchiveManifest.fileOf(archive);
+        Previous previous = null;
+        rebuildCause = null;
+        if (archive.isFile() && manifestFile.isFile()) {
+            try {
+                previous = new Previous(archive, ArchiveManifest.load(manifestFile));
+            } catch (IOException e) {
+                logger.warn("Cannot read " + archive + " or its manifest, rebuilding it", e);
+                rebuildCause = e;
+            }
+        }
+
+        ArchiveManifest manifest = new ArchiveManifest();
+        File temp = File.createTempFile(archive.getName(), ".tmp",
+                archive.getAbsoluteFile().getParentFile());
+        boolean done = false;
+        try {
+            run(input, temp, previous, manifest);
+            done = true;
+        } finally {
+            if (previous != null) {
+                previous.reader.close();
+            }
+            if (!done) {
+                temp.delete();
+            }
+        }
+        try {
+            Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        manifest.save(manifestFile);
+
+        if (previous != null) {
+            for (String name : previous.manifest.getNames()) {
+                if (!previous.seen.contains(name)) {
+                    droppedEntries++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param previous archive to copy unchanged entries from, may be null.
+     * @param manifest manifest to fill, null if none is kept.
+     */
+    private void run(File input, File output, Previous previous, ArchiveManifest manifest)
+            throws IOException {
+        copiedEntries = 0;
+        compressedEntries = 0;
+        droppedEntries = 0;
+
+        final AtomicInteger counter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ParallelZipCompressor-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        report = policy != null ? new CompressionReport() : null;
+        Pipeline pipeline = new Pipeline(pool, new ZipArchiveWriter(output),
+                maxInFlight > 0 ? maxInFlight : threads * 2, previous, manifest);
+        boolean done = false;
+        try {
+            FileTreeWalker walker = new FileTreeWalker(input, symlinkPolicy);
+            try {
+                while (walker.next()) {
+                    pipeline.add(walker);
+                }
+            } finally {
+                walker.close();
+            }
+            pipeline.finish();
+            done = true;
+        } finally {
+            pool.shutdownNow();
+            if (!done) {
+                pipeline.abort();
+                output.delete();
+            }
+        }
+    }
+
+    /**
+     * Submits chunks to the pool and writes them in order, keeping at most
+     * maxInFlight of them pending.
+     */
+    private class Pipeline {
+
+        private final ExecutorService pool;
+        private final ZipArchiveWriter writer;
+        private final int maxInFlight;
+        private final Deque<Pending> pending = new ArrayDeque<Pending>();
+        private final Previous previous;
+        private final ArchiveManifest manifest;
+
+        // Entry being written.
+        private ZipCrypto crypto;
+        private long entryCrc, entrySize, entryCompressed;
+        private CompressionPolicy.Decision entryDecision;
+
+        Pipeline(ExecutorService pool, ZipArchiveWriter writer, int maxInFlight,
+                 Previous previous, ArchiveManifest manifest) {
+            this.pool = pool;
+            this.writer = writer;
+            this.maxInFlight = maxInFlight;
+            this.previous = previous;
+            this.manifest = manifest;
+        }
+
+        void add(FileTreeWalker walker) throws IOException {
+            File file = walker.getFile();
+            String name = walker.getName();
+            long time = walker.getLastModified();
+            if (walker.getType() == FileTreeWalker.Type.DIRECTORY) {
+                enqueue(new Pending(new Entry(file, name, time, 0, 0, null), 0, null));
+                return;
+            }
+            if (walker.getType() == FileTreeWalker.Type.SYMLINK) {
+                Entry entry = new Entry(file, name, time, 0, 0, walker.getLinkTarget());
+                enqueue(new Pending(entry, 0, null));
+                return;
+            }
+
+            long size = walker.getSize();
+            String digest = null;
+            if (previous != null) {
+                previous.seen.add(name);
+                ArchiveManifest.Record record = previous.manifest.get(name);
+                ZipArchiveReader.Entry source = previous.entries.get(name);
+                if (record != null && record.getSize() == size && previous.isReusable(source, record)) {
+                    // Same size, then same time or else same content.
+                    if (record.getTime() != time) {
+                        digest = ArchiveManifest.digest(file);
+                    }
+                    if (record.getTime() == time || digest.equals(record.getDigest())) {
+                        Entry entry = new Entry(file, name, time, size, 0, null);
+                        entry.source = source;
+                        entry.digest = CompletableFuture.completedFuture(record.getDigest());
+                        enqueue(new Pending(entry, 0, null));
+                        return;
+                    }
+                }
+            }
+
+            int chunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+            Entry entry = new Entry(file, name, time, size, chunks, null);
+            if (manifest != null) {
+                entry.digest = digest != null ? CompletableFuture.completedFuture(digest)
+                        : pool.submit(new DigestTask(file));
+            }
+            if (policy != null && chunks > 1) {
+                entry.decision = policy.decide(file, size);
+            }
+            if (password != null && chunks > 1) {
+                entry.crc = pool.submit(new CrcTask(file));
+            }
+            for (int i = 0; i < chunks; i++) {
+                long offset = (long) i * chunkSize;
+                int length = (int) Math.min(chunkSize, size - offset);
+                Future<Chunk> future = pool.submit(new ChunkTask(entry, i, offset, length));
+                enqueue(new Pending(entry, i, future));
+            }
+        }
+
+        void finish() throws IOException {
+            while (!pending.isEmpty()) {
+                tracker.checkCancelled();
+                write(pending.poll());
+            }
+            writer.close();
+        }
+
+        void abort() {
+            for (Pending p : pending) {
+                if (p.future != null) {
+                    p.future.cancel(true);
+                }
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // Archive is deleted anyway.
+            }
+        }
+
+        private void enqueue(Pending p) throws IOException {
+            tracker.checkCancelled();
+            pending.add(p);
+            while (pending.size() > maxInFlight) {
+                write(pending.poll());
+            }
+        }
+
+        private void write(Pending p) throws IOException {
+            Entry entry = p.entry;
+            if (entry.source != null) {
+                copy(entry);
+                return;
+            }
+            if (p.future == null) {
+                if (entry.linkTarget != null) {
+                    writer.putSymbolicLink(entry.name, entry.time, entry.linkTarget);
+                } else {
+                    writer.putDirectory(entry.name, entry.time);
+                }
+                tracker.addEntry();
+                return;
+            }
+
+            Chunk chunk = get(p.future);
+            if (p.index == 0) {
+                entryDecision = chunk.decision;
+                writer.putEntry(entry.name, entry.time,
+                        entryDecision != null ? entryDecision.getMethod() : ZipArchiveWriter.METHOD_DEFLATED,
+                        password != null, entry.size);
+                entryCrc = 0;
+                entrySize = 0;
+                entryCompressed = 0;
+                crypto = null;
+                if (entry.crc != null) {
+                    crypto = new ZipCrypto(password);
+                    byte[] header = crypto.createHeader(get(entry.crc));
+                    writer.write(header, 0, header.length);
+                    entryCompressed += header.length;
+                }
+            }
+
+            if (crypto != null) {
+                crypto.encrypt(chunk.data, 0, chunk.length);
+            }
+            writer.write(chunk.data, 0, chunk.length);
+            tracker.addBytes(chunk.size);
+            entryCompressed += chunk.length;
+            entryCrc = crc32Combine(entryCrc, chunk.crc, chunk.size);
+            entrySize += chunk.size;
+
+            if (p.index == entry.chunks - 1) {
+                if (entry.crc != null && get(entry.crc) != entryCrc) {
+                    throw new IOException("File changed while archiving: " + entry.file);
+                }
+                writer.closeEntry(entryCrc, entryCompressed, entrySize);
+                tracker.addEntry();
+                compressedEntries++;
+                if (entry.digest != null) {
+                    record(entry, entryCrc);
+                }
+                if (report != null) {
+                    report.add(entryDecision.getReason(), entrySize,
+                            entryCompressed - (password != null ? ZipCrypto.HEADER_SIZE : 0));
+                }
+                crypto = null;
+            }
+        }
+
+        /**
+         * Copy an unchanged entry from the previous archive, as stored.
+         */
+        private void copy(Entry entry) throws IOException {
+            ZipArchiveReader.Entry source = entry.source;
+            writer.putEntry(entry.name, entry.time, source.getMethod(), source.isEncrypted(),
+                    source.getSize());
+            InputStream in = previous.reader.openRaw(source);
+            ByteBuffer buffer = StreamPipeline.acquire();
+            try {
+                byte[] block = buffer.array();
+                int read;
+                while ((read = in.read(block, 0, block.length)) > 0) {
+                    tracker.checkCancelled();
+                    writer.write(block, 0, read);
+                }
+            } finally {
+                StreamPipeline.release(buffer);
+                in.close();
+            }
+            writer.closeEntry(source.getCrc(), source.getCompressedSize(), source.getSize());
+            tracker.addBytes(source.getSize());
+            tracker.addEntry();
+            copiedEntries++;
+            record(entry, source.getCrc());
+        }
+
+        /**
+         * Add a file entry to the manifest, unless the file changed while it
+         * was archived: its digest may then not match the data archived.
+         */
+        private void record(Entry entry, long crc) throws IOException {
+            String digest = get(entry.digest);
+            if (entry.file.lastModified() == entry.time && entry.file.length() == entry.size) {
+                manifest.put(entry.name, new ArchiveManifest.Record(entry.size, entry.time, crc, digest));
+            }
+        }
+
+        private <T> T get(Future<T> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private static class Entry {
+
+        final File file;
+        final String name;
+        final long time;
+        final long size;
+        // Zero for a directory or a symbolic link.
+        final int chunks;
+        final String linkTarget;
+        // CRC of the whole file, only for encrypted entries of several chunks.
+        Future<Long> crc;
+        // Compression picked by the policy, only for entries of several chunks.
+        CompressionPolicy.Decision decision;
+        // SHA-256 of the file, only when a manifest is kept.
+        Future<String> digest;
+        // Entry of the previous archive to copy, instead of compressing.
+        ZipArchiveReader.Entry source;
+
+        Entry(File file, String name, long time, long size, int chunks, String linkTarget) {
+            this.file = file;
+            this.name = name;
+            this.time = time;
+            this.size = size;
+            this.chunks = chunks;
+            this.linkTarget = linkTarget;
+        }
+    }
+
+    private static class Pending {
+
+        final Entry entry;
+        final int index;
+        final Future<Chunk> future;
+
+        Pending(Entry entry, int index, Future<Chunk> future) {
+            this.entry = entry;
+            this.index = index;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Compressed chunk, ready to be written.
+     */
+    private static class Chunk {
+
+        final byte[] data;
+        final int length;
+        final long crc;
+        final int size;
+        final CompressionPolicy.Decision decision;
+
+        Chunk(byte[] data, int length, long crc, int size, CompressionPolicy.Decision decision) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.size = size;
+            this.decision = decision;
+        }
+    }
+
+    private class ChunkTask implements Callable<Chunk> {
+
+        private final Entry entry;
+        private final int index;
+        private final long offset;
+        private final int length;
+
+        ChunkTask(Entry entry, int index, long offset, int length) {
+            this.entry = entry;
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        // Data of the chunk as written, before encryption.
+        private byte[] output;
+        private int outputLength;
+
+        @Override
+        public Chunk call() throws IOException {
+            // Read the chunk with the end of the previous one as dictionary.
+            int dictionary = (int) Math.min(DICTIONARY_SIZE, offset);
+            byte[] input = new byte[dictionary + length];
+            int read = read(entry.file, offset - dictionary, input);
+            if (read < input.length) {
+                throw new IOException("File changed while archiving: " + entry.file);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(input, dictionary, length);
+
+            CompressionPolicy.Decision decision = entry.decision;
+            if (decision == null && policy != null) {
+                // Single chunk, the data is here to sample.
+                decision = policy.decideByName(entry.name, length);
+                if (decision == null) {
+                    decision = policy.decideBySample(input, dictionary, length);
+                }
+            }
+
+            if (decision != null && decision.isStored()) {
+                output = dictionary == 0 ? input : Arrays.copyOfRange(input, dictionary, input.length);
+                outputLength = length;
+            } else {
+                deflate(input, dictionary, decision != null ? decision.getLevel() : level);
+            }
+
+            if (password != null && entry.chunks == 1) {
+                // Whole entry in one chunk, encrypt it here.
+                ZipCrypto crypto = new ZipCrypto(password);
+                byte[] encrypted = new byte[ZipCrypto.HEADER_SIZE + outputLength];
+                System.arraycopy(crypto.createHeader(crc.getValue()), 0, encrypted, 0,
+                        ZipCrypto.HEADER_SIZE);
+                System.arraycopy(output, 0, encrypted, ZipCrypto.HEADER_SIZE, outputLength);
+                crypto.encrypt(encrypted, ZipCrypto.HEADER_SIZE, outputLength);
+                output = encrypted;
+                outputLength = encrypted.length;
+            }
+            return new Chunk(output, outputLength, crc.getValue(), length, decision);
+        }
+
+        /**
+         * Deflate the chunk, primed with the dictionary in front of it.
+         */
+        private void deflate(byte[] input, int dictionary, int level) {
+            boolean last = index == entry.chunks - 1;
+            Deflater deflater = new Deflater(level, true);
+            output = new byte[length + length / 8 + 64];
+            int n = 0;
+            try {
+                if (dictionary > 0) {
+                    deflater.setDictionary(input, 0, dictionary);
+                }
+                deflater.setInput(input, dictionary, length);
+                if (last) {
+                    deflater.finish();
+                }
+                while (true) {
+                    if (n == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    n += deflater.deflate(output, n, output.length - n,
+                            last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    if (last ? deflater.finished() : n < output.length) {
+                        break;
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+            outputLength = n;
+        }
+    }
+
+    private class CrcTask implements Callable<Long> {
+
+        private final File file;
+
+        CrcTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[Math.min(chunkSize, 256 * 1024)];
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                int read;
+                while ((read = raf.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                }
+            } finally {
+                raf.close();
+            }
+            return crc.getValue();
+        }
+    }
+
+    private static class DigestTask implements Callable<String> {
+
+        private final File file;
+
+        DigestTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public String call() throws IOException {
+            return ArchiveManifest.digest(file);
+        }
+    }
+
+    /**
+     * Previous archive of an update, with its manifest.
+     */
+    private class Previous {
+
+        final ZipArchiveReader reader;
+        final ArchiveManifest manifest;
+        // Entries of the archive listed in the manifest, by name.
+        final Map<String, ZipArchiveReader.Entry> entries = new HashMap<String, ZipArchiveReader.Entry>();
+        // Files of the manifest found in the input.
+        final Set<String> seen = new HashSet<String>();
+        // False if the password changed, encrypted entries are then compressed again.
+        final boolean encryptedReusable;
+
+        Previous(File archive, ArchiveManifest manifest) throws IOException {
+            this.reader = new ZipArchiveReader(archive);
+            this.manifest = manifest;
+            boolean ready = false;
+            try {
+                ZipArchiveReader.Entry smallest = null;
+                ZipArchiveReader.Entry entry;
+                while ((entry = reader.nextEntry()) != null) {
+                    if (manifest.get(entry.getName()) != null) {
+                        entries.put(entry.getName(), entry);
+                        if (entry.isEncrypted() && entry.isSupported()
+                                && (smallest == null || entry.getSize() < smallest.getSize())) {
+                            smallest = entry;
+                        }
+                    }
+                }
+                encryptedReusable = password != null && smallest != null && checkPassword(smallest);
+                ready = true;
+            } finally {
+                if (!ready) {
+                    reader.close();
+                }
+            }
+        }
+
+        /**
+         * The encryption header tells a wrong password only 255 times out of
+         * 256, so decrypt one entry entirely to be sure the password is the
+         * same.
+         */
+        private boolean checkPassword(ZipArchiveReader.Entry entry) {
+            try {
+                InputStream in = reader.open(entry, password);
+                try {
+                    CRC32 crc = new CRC32();
+                    byte[] buffer = new byte[64 * 1024];
+                    long size = 0;
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        crc.update(buffer, 0, read);
+                        size += read;
+                    }
+                    return size == entry.getSize() && crc.getValue() == entry.getCrc();
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // Wrong password, or corrupt entry.
+                return false;
+            }
+        }
+
+        /**
+         * True if an entry can be copied as is for a file matching its record.
+         */
+        boolean isReusable(ZipArchiveReader.Entry entry, ArchiveManifest.Record record)
+                throws IOException {
+            if (entry == null || entry.isDirectory() || entry.isSymbolicLink() || !entry.isSupported()
+                    || entry.getSize() != record.getSize() || entry.getCrc() != record.getCrc()) {
+                return false;
+            }
+            if (!entry.isEncrypted()) {
+                return password == null;
+            }
+            if (!encryptedReusable) {
+                return false;
+            }
+            // Same password, still check the header of this entry.
+            byte[] header = new byte[ZipCrypto.HEADER_SIZE];
+            InputStream in = reader.openRaw(entry);
+            try {
+                int n = 0;
+                while (n < header.length) {
+                    int read = in.read(header, n, header.length - n);
+                    if (read < 0) {
+                        return false;
+                    }
+                    n += read;
+                }
+            } finally {
+                in.close();
+            }
+            return new ZipCrypto(password).checkHeader(header, 0, entry.getCrc());
+        }
+    }
+
+    /**
+     * Positional read, fills buffer unless the end of file is reached.
+     *
+     * @return number of bytes read.
+     */
+    private static int read(File file, long position, byte[] buffer) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            while (bb.hasRemaining()) {
+                int read = channel.read(bb, position + bb.position());
+                if (read < 0) {
+                    break;
+                }
+            }
+            return bb.position();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * CRC-32 of two blocks put together, from the CRC of each block and the
+     * length of the second one. Same as zlib's crc32_combine().
+     */
+    static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // Operator for one zero bit.
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // Two zero bits, then four.
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // Apply length2 zero bytes to crc1.
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+}
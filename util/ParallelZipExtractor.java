@@ -0,0 +1,314 @@
+package com.msci.moslem.util;
+
+import net.lingala.zip4j.core.ZipFile;
+import net.lingala.zip4j.exception.ZipException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Extracts a ZIP archive with entries inflated, and decrypted if needed,
+ * concurrently on a pool of worker threads.
+ * <p/>
+ * Entries are listed from the central directory, then each worker reads its
+ * entries with positional reads on the shared archive, checks their CRC and
+ * writes them to an output file preallocated to the final size. Entries can
+ * be selected by name or glob, only the selected ones are read.
+ * <p/>
+ * Entries encrypted with AES, which this extractor cannot decrypt, are handed
+ * to Zip4J once the others are done.
+ */
+public class ParallelZipExtractor {
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private char[] password;
+    private ArchiveProgressTracker tracker = new ArchiveProgressTracker(null, 0);
+    private final List<Pattern> includes = new ArrayList<Pattern>();
+
+    /**
+     * @param threads number of worker threads, defaults to the number of
+     *                processors.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param password password of encrypted entries.
+     */
+    public void setPassword(char[] password) {
+        this.password = password == null ? null : password.clone();
+    }
+
+    /**
+     * Select the entries to extract, all of them if none is given. A pattern
+     * is an entry name or a glob: '*' and '?' match within a path element,
+     * '**' matches across elements. A pattern matching a directory selects
+     * everything under it.
+     * <pre>
+     * setIncludes("data/2013/**", "*.properties")
+     * </pre>
+     */
+    public void setIncludes(String... patterns) {
+        includes.clear();
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                includes.add(Pattern.compile(globToRegex(pattern) + "(/.*)?"));
+            }
+        }
+    }
+
+    /**
+     * Progress and cancellation of an async job.
+     */
+    void setTracker(ArchiveProgressTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * Extract the selected entries.
+     *
+     * @param archive   archive to read.
+     * @param outputDir directory to extract into, created if needed.
+     * @return number of entries extracted.
+     * @throws IOException failed to read or write, wrong password, or
+     *                     corrupt entry.
+     */
+    public int extract(File archive, File outputDir) throws IOException {
+        outputDir.mkdirs();
+        final String root = outputDir.getCanonicalPath() + File.separator;
+        final ZipArchiveReader reader = new ZipArchiveReader(archive);
+
+        // Bounded queue, the caller extracts entries itself when it is full,
+        // so listing entries never runs far ahead of the workers.
+        final AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ParallelZipExtractor-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        final AtomicInteger extracted = new AtomicInteger();
+        // Done last, so that no entry is written through a link.
+        List<ZipArchiveReader.Entry> links = new ArrayList<ZipArchiveReader.Entry>();
+        List<String> fallback = new ArrayList<String>();
+
+        try {
+            ZipArchiveReader.Entry entry;
+            while ((entry = reader.nextEntry()) != null && failure.get() == null) {
+                tracker.checkCancelled();
+                if (!isSelected(entry.getName())) {
+                    continue;
+                }
+                final File file = resolve(root, entry.getName());
+                if (entry.isDirectory()) {
+                    file.mkdirs();
+                    extracted.incrementAndGet();
+                    tracker.addEntry();
+                } else if (entry.isSymbolicLink()) {
+                    links.add(entry);
+                } else if (!entry.isSupported()) {
+                    fallback.add(entry.getName());
+                } else {
+                    final ZipArchiveReader.Entry task = entry;
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (failure.get() != null) {
+                                return;
+                            }
+                            try {
+                                extractEntry(reader, task, file);
+                                extracted.incrementAndGet();
+                                tracker.addEntry();
+                            } catch (IOException e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    });
+                }
+            }
+
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+
+            for (ZipArchiveReader.Entry link : links) {
+                extractLink(reader, link, resolve(root, link.getName()));
+                extracted.incrementAndGet();
+                tracker.addEntry();
+            }
+        } finally {
+            pool.shutdownNow();
+            reader.close();
+        }
+
+        if (!fallback.isEmpty()) {
+            extractWithZip4J(archive, fallback, outputDir);
+            extracted.addAndGet(fallback.size());
+        }
+        return extracted.get();
+    }
+
+    private void extractEntry(ZipArchiveReader reader, ZipArchiveReader.Entry entry, File file)
+            throws IOException {
+        file.getParentFile().mkdirs();
+        InputStream in = reader.open(entry, password);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        ByteBuffer buffer = StreamPipeline.acquire();
+        try {
+            // Preallocate, the file system can then lay it out in one piece.
+            raf.setLength(entry.getSize());
+            FileChannel channel = raf.getChannel();
+            byte[] block = buffer.array();
+            CRC32 crc = new CRC32();
+            long position = 0;
+            int read;
+            while ((read = in.read(block, 0, block.length)) > 0) {
+                tracker.checkCancelled();
+                if (position + read > entry.getSize()) {
+                    throw new IOException("Entry larger than declared: " + entry.getName());
+                }
+                crc.update(block, 0, read);
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                tracker.addBytes(read);
+            }
+            if (position != entry.getSize() || crc.getValue() != entry.getCrc()) {
+                throw new IOException("Corrupt entry: " + entry.getName());
+            }
+        } finally {
+            StreamPipeline.release(buffer);
+            raf.close();
+            in.close();
+        }
+        file.setLastModified(entry.getTime());
+    }
+
+    private void extractLink(ZipArchiveReader reader, ZipArchiveReader.Entry entry, File file)
+            throws IOException {
+        file.getParentFile().mkdirs();
+        InputStream in = reader.open(entry, password);
+        String target;
+        try {
+            byte[] data = new byte[(int) entry.getSize()];
+            int n = 0;
+            while (n < data.length) {
+                int read = in.read(data, n, data.length - n);
+                if (read < 0) {
+                    break;
+                }
+                n += read;
+            }
+            target = new String(data, 0, n, "UTF-8");
+        } finally {
+            in.close();
+        }
+        Files.deleteIfExists(file.toPath());
+        Files.createSymbolicLink(file.toPath(), Paths.get(target));
+    }
+
+    private void extractWithZip4J(File archive, List<String> names, File outputDir)
+            throws IOException {
+        try {
+            ZipFile zipFile = new ZipFile(archive);
+            if (password != null) {
+                zipFile.setPassword(password);
+            }
+            for (String name : names) {
+                tracker.checkCancelled();
+                zipFile.extractFile(name, outputDir.getPath());
+                tracker.addEntry();
+            }
+        } catch (ZipException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private boolean isSelected(String name) {
+        if (includes.isEmpty()) {
+            return true;
+        }
+        if (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        for (Pattern include : includes) {
+            if (include.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * File of an entry, refusing names that would land outside the output
+     * directory.
+     */
+    private static File resolve(String root, String name) throws IOException {
+        File file = new File(root, name);
+        String path = file.getCanonicalPath();
+        if (!(path + File.separator).startsWith(root)) {
+            throw new IOException("Entry outside of the output directory: " + name);
+        }
+        return file;
+    }
+
+    static String globToRegex(String glob) {
+        if (glob.endsWith("/")) {
+            glob = glob.substring(0, glob.length() - 1);
+        }
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+                regex.append('\\').append(c);
+            } else {
+                regex.append(c);
+            }
+        }
+        return regex.toString();
+    }
+}
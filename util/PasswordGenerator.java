@@ -0,0 +1,160 @@
+package util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Random salts and passwords from a cryptographically strong source, drawn
+ * from an alphabet with no bias.
+ * <p/>
+ * Each thread has its own SecureRandom and reads it a buffer at a time, so
+ * threads never wait for each other and generation scales with the cores.
+ * The shared java.util.Random of RandomStringUtils is neither. Immutable and
+ * thread-safe:
+ * <pre>
+ * PasswordGenerator salts = new PasswordGenerator(PasswordGenerator.ALPHANUMERIC, 16);
+ * String[] batch = new String[100000];
+ * salts.fill(batch);
+ * </pre>
+ */
+public class PasswordGenerator {
+
+    public static final String ALPHANUMERIC = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    // Random bytes read from the SecureRandom at a time.
+    private static final int BUFFER_SIZE = 512;
+
+    // Values filled by a worker at a time, fill() uses this thread below it.
+    private static final int CHUNK_SIZE = 4096;
+
+    private static final ThreadLocal<Entropy> entropy = new ThreadLocal<Entropy>() {
+        @Override
+        protected Entropy initialValue() {
+            return new Entropy();
+        }
+    };
+
+    private final char[] alphabet;
+    private final int length;
+    // Bytes at or over the limit are dropped, so every char is as likely.
+    private final int limit;
+
+    /**
+     * @param alphabet chars to draw from, 2 to 256 of them.
+     * @param length   default length of the values.
+     */
+    public PasswordGenerator(String alphabet, int length) {
+        if (alphabet.length() < 2 || alphabet.length() > 256) {
+            throw new IllegalArgumentException("alphabet must have 2 to 256 chars");
+        }
+        if (length < 1) {
+            throw new IllegalArgumentException("length must be at least 1");
+        }
+        this.alphabet = alphabet.toCharArray();
+        this.length = length;
+        this.limit = 256 - 256 % this.alphabet.length;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public String next() {
+        return next(length);
+    }
+
+    public String next(int length) {
+        return new String(nextChars(length));
+    }
+
+    /**
+     * For passwords that should not be Strings, so they can be cleared.
+     */
+    public char[] nextChars(int length) {
+        char[] chars = new char[length];
+        fill(chars, entropy.get());
+        return chars;
+    }
+
+    /**
+     * Fill an array with values of the default length, on several threads
+     * if it is large.
+     */
+    public void fill(final String[] values) {
+        ParallelChunks.run(values.length, CHUNK_SIZE, Runtime.getRuntime().availableProcessors(),
+                new ParallelChunks.Chunk() {
+            @Override
+            public void run(int from, int to) {
+                fill(values, from, to);
+            }
+        });
+    }
+
+    /**
+     * Fill values[from, to) with values of the default length, on this
+     * thread.
+     */
+    public void fill(String[] values, int from, int to) {
+        Entropy e = entropy.get();
+        char[] chars = new char[length];
+        for (int i = from; i < to; i++) {
+            fill(chars, e);
+            values[i] = new String(chars);
+        }
+    }
+
+    /**
+     * Write count values of the default length, one per line.
+     */
+    public void write(Writer out, int count) throws IOException {
+        Entropy e = entropy.get();
+        char[] chars = new char[length];
+        for (int i = 0; i < count; i++) {
+            fill(chars, e);
+            out.write(chars);
+            out.write('\n');
+        }
+    }
+
+    private void fill(char[] chars, Entropy e) {
+        int i = 0;
+        while (i < chars.length) {
+            int b = e.next();
+            if (b < limit) {
+                chars[i++] = alphabet[b % alphabet.length];
+            }
+        }
+    }
+
+    /**
+     * SecureRandom of a thread, and its unread bytes.
+     */
+    private static class Entropy {
+
+        private final SecureRandom random;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = BUFFER_SIZE;
+
+        Entropy() {
+            SecureRandom r;
+            try {
+                // Seeded once per thread, then no lock shared with other
+                // threads, unlike NativePRNG reading the system source.
+                r = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                r = new SecureRandom();
+            }
+            random = r;
+        }
+
+        int next() {
+            if (position == BUFFER_SIZE) {
+                random.nextBytes(buffer);
+                position = 0;
+            }
+            return buffer[position++] & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-512 hex hashes of password + salt, the same as
+ * {@link PasswordUtil#generateHash(String, String)}, without creating a
+ * MessageDigest or concatenating Strings for each hash.
+ * <p/>
+ * Each thread reuses its own digest and buffers, and passwords can be given
+ * as char[] or byte[] so they never have to be Strings. Like the former
+ * method, chars are encoded in the platform charset. The buffers are cleared
+ * after each hash. {@link #verify} compares in constant time.
+ * <p/>
+ * Thread-safe. For bulk migrations, {@link #hashAll} and {@link #verifyAll}
+ * spread many credentials over the common fork-join pool:
+ * <pre>
+ * PasswordHasher hasher = new PasswordHasher();
+ * String[] hashes = hasher.hashAll(passwords, salts);
+ * </pre>
+ */
+public class PasswordHasher {
+
+    // Bytes in a SHA-512 digest.
+    public static final int DIGEST_LENGTH = 64;
+
+    // Credentials handed to a worker at a time by the batch methods.
+    private static final int CHUNK_SIZE = 256;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param threads threads hashing at most in the batch methods, defaults
+     *                to the number of processors.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return lowercase hex SHA-512 of password + salt.
+     */
+    public String hash(String password, String salt) {
+        Scratch s = scratch.get();
+        int length = s.chars(password.length() + salt.length());
+        password.getChars(0, password.length(), s.chars, 0);
+        salt.getChars(0, salt.length(), s.chars, password.length());
+        return s.hex(s.digest(length));
+    }
+
+    /**
+     * @return lowercase hex SHA-512 of password + salt.
+     */
+    public String hash(char[] password, String salt) {
+        Scratch s = scratch.get();
+        int length = s.chars(password.length + salt.length());
+        System.arraycopy(password, 0, s.chars, 0, password.length);
+        salt.getChars(0, salt.length(), s.chars, password.length);
+        return s.hex(s.digest(length));
+    }
+
+    /**
+     * @param password password encoded in the platform charset.
+     * @param salt     salt encoded in the platform charset.
+     * @return lowercase hex SHA-512 of password + salt.
+     */
+    public String hash(byte[] password, byte[] salt) {
+        Scratch s = scratch.get();
+        s.md.update(password);
+        s.md.update(salt);
+        return s.hex(s.finish());
+    }
+
+    /**
+     * Check a password against a stored hash, in a time that does not
+     * depend on where they differ.
+     *
+     * @param expected hex hash, as returned by hash(), in either case.
+     */
+    public boolean verify(char[] password, String salt, String expected) {
+        Scratch s = scratch.get();
+        int length = s.chars(password.length + salt.length());
+        System.arraycopy(password, 0, s.chars, 0, password.length);
+        salt.getChars(0, salt.length(), s.chars, password.length);
+        return matches(s.digest(length), expected);
+    }
+
+    public boolean verify(String password, String salt, String expected) {
+        Scratch s = scratch.get();
+        int length = s.chars(password.length() + salt.length());
+        password.getChars(0, password.length(), s.chars, 0);
+        salt.getChars(0, salt.length(), s.chars, password.length());
+        return matches(s.digest(length), expected);
+    }
+
+    /**
+     * Hash many passwords on the worker threads.
+     *
+     * @return hash of each password with the salt at the same index.
+     */
+    public String[] hashAll(final char[][] passwords, final String[] salts) {
+        checkLengths(passwords.length, salts.length);
+        final String[] hashes = new String[passwords.length];
+        ParallelChunks.run(passwords.length, CHUNK_SIZE, threads, new ParallelChunks.Chunk() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    hashes[i] = hash(passwords[i], salts[i]);
+                }
+            }
+        });
+        return hashes;
+    }
+
+    /**
+     * Verify many passwords on the worker threads.
+     *
+     * @return for each password, whether it matches the hash at the same
+     *         index.
+     */
+    public boolean[] verifyAll(final char[][] passwords, final String[] salts, final String[] hashes) {
+        checkLengths(passwords.length, salts.length);
+        checkLengths(passwords.length, hashes.length);
+        final boolean[] matches = new boolean[passwords.length];
+        ParallelChunks.run(passwords.length, CHUNK_SIZE, threads, new ParallelChunks.Chunk() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    matches[i] = verify(passwords[i], salts[i], hashes[i]);
+                }
+            }
+        });
+        return matches;
+    }
+
+    /**
+     * Constant-time comparison of a digest with a hex hash. Invalid or
+     * missing hex digits never match.
+     */
+    static boolean matches(byte[] digest, String expected) {
+        int diff = expected.length() ^ (DIGEST_LENGTH * 2);
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            int hi = hexValue(expected, i * 2);
+            int lo = hexValue(expected, i * 2 + 1);
+            diff |= ((hi << 4) | lo) ^ (digest[i] & 0xFF);
+        }
+        return diff == 0;
+    }
+
+    private static int hexValue(String s, int index) {
+        int value = index < s.length() ? Character.digit(s.charAt(index), 16) : -1;
+        // Sets bits above the byte, so the comparison fails.
+        return value < 0 ? 0x100 : value;
+    }
+
+    private static void checkLengths(int expected, int actual) {
+        if (expected != actual) {
+            throw new IllegalArgumentException("Arrays must have the same length: " + expected + " != " + actual);
+        }
+    }
+
+    /**
+     * Digest and buffers of a thread.
+     */
+    private static class Scratch {
+
+        final MessageDigest md;
+        final byte[] result = new byte[DIGEST_LENGTH];
+        final char[] hex = new char[DIGEST_LENGTH * 2];
+        // Same replacements as String.getBytes() for unmappable chars.
+        final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        char[] chars = new char[64];
+        byte[] bytes = new byte[(int) Math.ceil(64 * encoder.maxBytesPerChar())];
+
+        Scratch() {
+            try {
+                md = MessageDigest.getInstance("SHA-512");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Make room for length chars, and for their encoded bytes.
+         */
+        int chars(int length) {
+            if (chars.length < length) {
+                chars = new char[length];
+                bytes = new byte[(int) Math.ceil(length * encoder.maxBytesPerChar())];
+            }
+            return length;
+        }
+
+        /**
+         * Digest the first length chars encoded like String.getBytes(), in
+         * the platform charset. Both buffers are cleared.
+         */
+        byte[] digest(int length) {
+            int n = 0;
+            while (n < length && chars[n] < 0x80) {
+                bytes[n] = (byte) chars[n];
+                n++;
+            }
+            if (n < length) {
+                // Not ASCII, left to the charset.
+                ByteBuffer out = ByteBuffer.wrap(bytes, n, bytes.length - n);
+                encoder.reset();
+                encoder.encode(CharBuffer.wrap(chars, n, length - n), out, true);
+                encoder.flush(out);
+                n = out.position();
+            }
+            md.update(bytes, 0, n);
+            Arrays.fill(chars, 0, length, '\0');
+            Arrays.fill(bytes, 0, n, (byte) 0);
+            return finish();
+        }
+
+        byte[] finish() {
+            try {
+                md.digest(result, 0, DIGEST_LENGTH);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            return result;
+        }
+
+        String hex(byte[] digest) {
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+            }
+            return new String(hex);
+        }
+    }
+}
@@ -1,20 +1,27 @@
 package util;
 
-import org.apache.commons.lang3.RandomStringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.security.core.token.Sha512DigestUtils;
 
-import java.security.MessageDigest;
+import java.util.concurrent.Callable;
 
 public class PasswordUtil {
 
     private Logger logger;
 
-    private MessageDigest digest;
-    
+    private static final PasswordHasher hasher = new PasswordHasher();
+
+    private final StretchedPasswordHasher stretcher = new StretchedPasswordHasher();
+
+    private LoginScheduler scheduler;
+
     final int LENGTH_OF_PASSWORD = 10;
 
+    private PasswordGenerator saltGenerator = new PasswordGenerator(PasswordGenerator.ALPHANUMERIC, 16);
+
+    private PasswordGenerator passwordGenerator =
+            new PasswordGenerator(PasswordGenerator.ALPHANUMERIC, LENGTH_OF_PASSWORD);
+
     public PasswordUtil() {
         logger = LoggerFactory.getLogger(PasswordUtil.class);
     }
@@ -23,20 +30,133 @@ public class PasswordUtil {
      * Generate Salt for password generator
      */
     public String generateSalt(int length) {
-        return RandomStringUtils.randomAlphanumeric(length);
+        return saltGenerator.next(length);
+    }
+
+    /*
+     * Generate Salts into an array, for provisioning jobs
+     */
+    public void generateSalts(String[] salts) {
+        saltGenerator.fill(salts);
+    }
+
+    /*
+     * Alphabet and length of generated Salts
+     */
+    public void setSaltGenerator(PasswordGenerator saltGenerator) {
+        this.saltGenerator = saltGenerator;
     }
 
     /*
      * Generate Hash from password and salt value
      */
     public String generateHash(String password, String salt) {
-        return Sha512DigestUtils.shaHex(password+salt);
+        return hasher.hash(password, salt);
+    }
+
+    /*
+     * Generate Hash from password kept out of Strings
+     */
+    public String generateHash(char[] password, String salt) {
+        return hasher.hash(password, salt);
+    }
+
+    /*
+     * Check password against a hash from generateHash, in constant time
+     */
+    public boolean verifyPassword(char[] password, String salt, String hash) {
+        return hasher.verify(password, salt, hash);
+    }
+
+    public boolean verifyPassword(String password, String salt, String hash) {
+        return hasher.verify(password, salt, hash);
+    }
+
+    /*
+     * Hasher for batch hashing and verification, see PasswordHasher
+     */
+    public PasswordHasher getHasher() {
+        return hasher;
+    }
+
+    /*
+     * Generate stretched (PBKDF2) Hash from password, salt and parameters are stored in it
+     */
+    public String generateStretchedHash(char[] password) {
+        return stretcher.hash(password);
+    }
+
+    /*
+     * Check password against a stored Hash, stretched or from generateHash. On a match
+     * the result has a new stretched Hash to store when the stored one is a legacy Hash
+     * or has fewer iterations than now. The salt is only used by legacy Hashes.
+     */
+    public PasswordVerification checkPassword(final char[] password, final String salt, final String storedHash) {
+        if (scheduler == null) {
+            return check(password, salt, storedHash);
+        }
+        PasswordVerification result = scheduler.run(new Callable<PasswordVerification>() {
+            @Override
+            public PasswordVerification call() {
+                return check(password, salt, storedHash);
+            }
+        });
+        if (result == null) {
+            logger.warn("Password check given up, {} waiting", scheduler.getQueued());
+            return PasswordVerification.BUSY;
+        }
+        return result;
+    }
+
+    private PasswordVerification check(char[] password, String salt, String storedHash) {
+        boolean match = StretchedPasswordHasher.isStretched(storedHash)
+                ? stretcher.verify(password, storedHash)
+                : hasher.verify(password, salt, storedHash);
+        if (!match) {
+            return PasswordVerification.MISMATCH;
+        }
+        String upgraded = stretcher.needsUpgrade(storedHash) ? stretcher.hash(password) : null;
+        return new PasswordVerification(PasswordVerification.Status.MATCH, upgraded);
+    }
+
+    /*
+     * Set the iterations of stretched Hashes to take about targetMillis of CPU on this machine
+     */
+    public int calibrateStretching(long targetMillis) {
+        int iterations = stretcher.calibrate(targetMillis);
+        logger.info("Stretched hashes use {} iterations for {} ms", iterations, targetMillis);
+        return iterations;
+    }
+
+    public StretchedPasswordHasher getStretcher() {
+        return stretcher;
+    }
+
+    /*
+     * Run checkPassword on the threads of a scheduler, null to run it on the caller thread
+     */
+    public void setLoginScheduler(LoginScheduler scheduler) {
+        this.scheduler = scheduler;
     }
 
     /*
      * Generate random password for reset password function
      */
     public String generateRandomPassword() {
-        return RandomStringUtils.randomAlphanumeric(LENGTH_OF_PASSWORD);
+        return passwordGenerator.next();
+    }
+
+    /*
+     * Generate random passwords into an array, for provisioning jobs
+     */
+    public void generateRandomPasswords(String[] passwords) {
+        passwordGenerator.fill(passwords);
+    }
+
+    /*
+     * Alphabet and length of random passwords, LENGTH_OF_PASSWORD alphanumeric by default
+     */
+    public void setPasswordGenerator(PasswordGenerator passwordGenerator) {
+        this.passwordGenerator = passwordGenerator;
     }
 }
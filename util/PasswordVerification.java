@@ -0,0 +1,48 @@
+package util;
+
+/**
+ * Outcome of {@link PasswordUtil#checkPassword}: whether the password
+ * matched, and the hash to store instead of the old one, if it should be
+ * upgraded.
+ */
+public class PasswordVerification {
+
+    public enum Status {
+        MATCH,
+        MISMATCH,
+        // Given up by the LoginScheduler, ask to try again later.
+        BUSY
+    }
+
+    static final PasswordVerification MISMATCH = new PasswordVerification(Status.MISMATCH, null);
+    static final PasswordVerification BUSY = new PasswordVerification(Status.BUSY, null);
+
+    private final Status status;
+    private final String upgradedHash;
+
+    PasswordVerification(Status status, String upgradedHash) {
+        this.status = status;
+        this.upgradedHash = upgradedHash;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isMatch() {
+        return status == Status.MATCH;
+    }
+
+    /**
+     * @return new stretched hash to store in place of the old one, or null
+     *         if the stored hash is up to date or the password did not match.
+     */
+    public String getUpgradedHash() {
+        return upgradedHash;
+    }
+
+    @Override
+    public String toString() {
+        return status + (upgradedHash != null ? ", upgraded" : "");
+    }
+}
@@ -0,0 +1,46 @@
+package com.msci.moslem.util;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A decoded source image, possibly at a lower resolution than the source
+ * file, with the size of the source. See
+ * {@link ImageBatchResizer#setSubsampling(boolean)}.
+ */
+public final class SourceImage {
+
+    private final BufferedImage image;
+    private final int sourceWidth;
+    private final int sourceHeight;
+
+    public SourceImage(BufferedImage image, int sourceWidth, int sourceHeight) {
+        this.image = image;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return width of the image in the source file.
+     */
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    /**
+     * @return height of the image in the source file.
+     */
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    /**
+     * @return true if decoded at a lower resolution than the source.
+     */
+    public boolean isSubsampled() {
+        return image.getWidth() < sourceWidth || image.getHeight() < sourceHeight;
+    }
+}
@@ -0,0 +1,179 @@
+package com.msci.moslem.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Block copies between files and streams, shared by the streaming zip paths
+ * of {@link GZipHelper}.
+ * <p/>
+ * Files are read and written through their FileChannel, in large blocks.
+ * Blocks come from a pool of reusable buffers, so copying many files does not
+ * allocate a new buffer for each one. Every method closes what it opens,
+ * even on failure.
+ */
+public final class StreamPipeline {
+
+    /**
+     * Size of the pooled buffers.
+     */
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Size of the buffers put in front of zip streams, which often write
+     * little at a time.
+     */
+    public static final int STREAM_BUFFER_SIZE = 256 * 1024;
+
+    private static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private StreamPipeline() {}
+
+    /**
+     * Take a buffer of BLOCK_SIZE bytes from the pool. It is backed by an
+     * array, and must be given back with {@link #release(ByteBuffer)}.
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(BLOCK_SIZE);
+        }
+        POOLED.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        // Keep a few buffers only, the others are left to the GC.
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer(buffer);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    /**
+     * Copy a file to a stream.
+     *
+     * @return number of bytes copied.
+     */
+    public static long copy(File input, OutputStream output) throws IOException {
+        FileInputStream fis = new FileInputStream(input);
+        ByteBuffer buffer = acquire();
+        try {
+            FileChannel channel = fis.getChannel();
+            byte[] block = buffer.array();
+            long total = 0;
+            while (true) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+                output.write(block, 0, buffer.position());
+                total += buffer.position();
+            }
+            return total;
+        } finally {
+            release(buffer);
+            fis.close();
+        }
+    }
+
+    /**
+     * Copy a stream to a file, replacing it if it exists. The stream is left
+     * open.
+     *
+     * @return number of bytes copied.
+     */
+    public static long copy(InputStream input, File output) throws IOException {
+        FileOutputStream fos = new FileOutputStream(output);
+        ByteBuffer buffer = acquire();
+        try {
+            FileChannel channel = fos.getChannel();
+            byte[] block = buffer.array();
+            long total = 0;
+            int read;
+            while ((read = fill(input, block)) > 0) {
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                total += read;
+            }
+            return total;
+        } finally {
+            release(buffer);
+            fos.close();
+        }
+    }
+
+    /**
+     * Copy a stream to another, both are left open.
+     *
+     * @return number of bytes copied.
+     */
+    public static long copy(InputStream input, OutputStream output) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            byte[] block = buffer.array();
+            long total = 0;
+            int read;
+            while ((read = fill(input, block)) > 0) {
+                output.write(block, 0, read);
+                total += read;
+            }
+            return total;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Buffered output stream over the channel of a new file.
+     */
+    public static OutputStream openOutput(File file) throws IOException {
+        return new BufferedOutputStream(
+                Channels.newOutputStream(new FileOutputStream(file).getChannel()),
+                STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Buffered input stream over the channel of a file.
+     */
+    public static InputStream openInput(File file) throws IOException {
+        return new BufferedInputStream(
+                Channels.newInputStream(new FileInputStream(file).getChannel()),
+                STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Read until the block is full or the stream ends, so writes stay large
+     * even when the stream returns little at a time.
+     */
+    private static int fill(InputStream input, byte[] block) throws IOException {
+        int n = 0;
+        while (n < block.length) {
+            int read = input.read(block, n, block.length - n);
+            if (read < 0) {
+                break;
+            }
+            n += read;
+        }
+        return n;
+    }
+}
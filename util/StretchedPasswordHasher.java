@@ -0,0 +1,225 @@
+package util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * PBKDF2 (HMAC-SHA512) password hashes, with their parameters stored along
+ * with them so the iteration count can be raised without breaking the hashes
+ * already stored:
+ * <pre>
+ * $pbkdf2-sha512$&lt;iterations&gt;$&lt;salt hex&gt;$&lt;hash hex&gt;
+ * </pre>
+ * The salt is random and part of the stored value, no separate salt column
+ * is needed. {@link #calibrate(long)} picks the iteration count taking a
+ * given CPU time per hash on the current machine; {@link #needsUpgrade}
+ * tells which stored hashes are legacy ones or use fewer iterations than
+ * that.
+ * <p/>
+ * Thread-safe. Each thread reuses its own key factory.
+ */
+public class StretchedPasswordHasher {
+
+    public static final String PREFIX = "$pbkdf2-sha512$";
+
+    public static final int DEFAULT_ITERATIONS = 100000;
+
+    // Never calibrate below this, even on a fast machine.
+    public static final int MIN_ITERATIONS = 10000;
+
+    // Never calibrate above this. Stored hashes with more iterations are
+    // refused, so a corrupt or tampered one can not hold a thread for hours.
+    public static final int MAX_ITERATIONS = 10000000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA512";
+    private static final int SALT_BYTES = 16;
+    private static final int KEY_BYTES = 64;
+
+    // Iterations timed by calibrate(), then scaled to the target.
+    private static final int PROBE_ITERATIONS = 10000;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final ThreadLocal<SecretKeyFactory> factory = new ThreadLocal<SecretKeyFactory>() {
+        @Override
+        protected SecretKeyFactory initialValue() {
+            try {
+                return SecretKeyFactory.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private volatile int iterations = DEFAULT_ITERATIONS;
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @param iterations iterations of new hashes, from MIN_ITERATIONS to
+     *                   MAX_ITERATIONS.
+     */
+    public void setIterations(int iterations) {
+        if (iterations < MIN_ITERATIONS || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("iterations must be from " + MIN_ITERATIONS
+                    + " to " + MAX_ITERATIONS);
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * Time a hash on this machine and set the iterations so that a hash
+     * takes about targetMillis of CPU time, rounded to a thousand.
+     *
+     * @return the new iteration count.
+     */
+    public int calibrate(long targetMillis) {
+        char[] password = "calibration".toCharArray();
+        byte[] salt = new byte[SALT_BYTES];
+        // Warm up the JIT before timing.
+        for (int i = 0; i < 3; i++) {
+            derive(password, salt, PROBE_ITERATIONS);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            derive(password, salt, PROBE_ITERATIONS);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        long scaled = PROBE_ITERATIONS * (targetMillis * 1000000L) / Math.max(1, best);
+        int rounded = (int) Math.min(MAX_ITERATIONS, scaled / 1000 * 1000);
+        iterations = Math.max(MIN_ITERATIONS, rounded);
+        return iterations;
+    }
+
+    /**
+     * @return stored form of a new hash of the password, with a random salt.
+     */
+    public String hash(char[] password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        int n = iterations;
+        byte[] key = derive(password, salt, n);
+        return PREFIX + n + "$" + toHex(salt) + "$" + toHex(key);
+    }
+
+    /**
+     * Check a password against a stored hash, comparing in constant time.
+     *
+     * @return false also if stored is not a hash of this class, or has more
+     *         than MAX_ITERATIONS.
+     */
+    public boolean verify(char[] password, String stored) {
+        Encoded encoded = Encoded.parse(stored);
+        if (encoded == null) {
+            return false;
+        }
+        byte[] key = derive(password, encoded.salt, encoded.iterations, encoded.key.length);
+        return MessageDigest.isEqual(key, encoded.key);
+    }
+
+    /**
+     * @return true if stored is a hash of this class.
+     */
+    public static boolean isStretched(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    /**
+     * @return true if stored should be hashed again after a successful
+     *         login: a legacy hash, or one with fewer iterations than now.
+     */
+    public boolean needsUpgrade(String stored) {
+        Encoded encoded = Encoded.parse(stored);
+        return encoded == null || encoded.iterations < iterations;
+    }
+
+    private static byte[] derive(char[] password, byte[] salt, int iterations) {
+        return derive(password, salt, iterations, KEY_BYTES);
+    }
+
+    private static byte[] derive(char[] password, byte[] salt, int iterations, int keyBytes) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyBytes * 8);
+        try {
+            return factory.get().generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    /**
+     * Parameters and key of a stored hash.
+     */
+    private static class Encoded {
+
+        final int iterations;
+        final byte[] salt;
+        final byte[] key;
+
+        private Encoded(int iterations, byte[] salt, byte[] key) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.key = key;
+        }
+
+        /**
+         * @return null if stored is not a well-formed hash of this class, or
+         *         would cost more than a hash of this class can: over
+         *         MAX_ITERATIONS, or a key longer than KEY_BYTES.
+         */
+        static Encoded parse(String stored) {
+            if (!isStretched(stored)) {
+                return null;
+            }
+            String[] parts = stored.substring(PREFIX.length()).split("\\$");
+            if (parts.length != 3) {
+                return null;
+            }
+            int iterations;
+            try {
+                iterations = Integer.parseInt(parts[0]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            byte[] salt = fromHex(parts[1]);
+            byte[] key = fromHex(parts[2]);
+            if (iterations < 1 || iterations > MAX_ITERATIONS || salt == null || key == null
+                    || key.length == 0 || key.length > KEY_BYTES) {
+                return null;
+            }
+            return new Encoded(iterations, salt, key);
+        }
+    }
+}
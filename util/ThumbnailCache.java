@@ -0,0 +1,458 @@
+package com.msci.moslem.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * On-disk cache of resized images, keyed by the content of the source and
+ * the {@link ImageSpec}: the same picture uploaded twice under different
+ * names is resized once, and a modified source never gets a stale output.
+ * <p/>
+ * Outputs are kept under the cache directory up to a size budget, the least
+ * recently used are deleted first. An in-memory index of the entries, in
+ * access order, answers lookups without touching the disk and is rebuilt
+ * from the files, oldest first, when a cache is opened on an existing
+ * directory.
+ * <p/>
+ * Thread-safe. Threads asking for the same output at the same time share
+ * one render: the first one decodes and resizes, the others wait for it.
+ * A file returned may be evicted later on, copy or open it right away, or
+ * use {@link #copyTo}, which keeps it while it copies.
+ * <pre>
+ * ThumbnailCache cache = new ThumbnailCache(new File("/var/cache/thumbs"), 512L * 1024 * 1024);
+ * File thumb = cache.get(upload, ImageSpec.builder().size(160, 160).format("jpg").build());
+ * </pre>
+ */
+public class ThumbnailCache {
+
+    // Digests of sources, so an unchanged source is not read again.
+    private static final int DIGEST_CACHE_SIZE = 10000;
+
+    // Renders in progress are written to temp files first.
+    private static final String TEMP_PREFIX = "render-";
+
+    private final File dir;
+    private final long maxBytes;
+    private final ImageBatchResizer renderer;
+
+    // Entry key to size in bytes, in access order. Guarded by itself.
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits, misses;
+    // Entries being copied, not evicted until unpinned, with their number
+    // of copies. Guarded by index.
+    private final Map<String, Integer> pins = new HashMap<String, Integer>();
+
+    // Renders in progress, by entry key.
+    private final ConcurrentMap<String, FutureTask<File>> renders =
+            new ConcurrentHashMap<String, FutureTask<File>>();
+    // Sources being rendered, by digest and specs, shared by their renders.
+    private final ConcurrentMap<String, Decoded> decodes = new ConcurrentHashMap<String, Decoded>();
+
+    private final Map<String, String[]> digests = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > DIGEST_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Open a cache, keeping the outputs already in the directory within the
+     * budget.
+     *
+     * @param dir      directory of the cache, created if needed. Nothing
+     *                 else should be stored in it.
+     * @param maxBytes size budget of the outputs.
+     */
+    public ThumbnailCache(File dir, long maxBytes) throws IOException {
+        this(dir, maxBytes, new ImageBatchResizer());
+    }
+
+    /**
+     * @param renderer decodes sources and renders outputs, with its
+     *                 subsampling and pixel guard settings.
+     */
+    public ThumbnailCache(File dir, long maxBytes, ImageBatchResizer renderer) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create cache directory " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.renderer = renderer;
+        load();
+    }
+
+    /**
+     * Output of a source for one spec, rendered if not in the cache.
+     *
+     * @throws IOException failed to read or decode the source, or to write
+     *                     the output.
+     */
+    public File get(File source, ImageSpec spec) throws IOException {
+        return get(source, Collections.singletonList(spec)).get(0);
+    }
+
+    /**
+     * Outputs of a source for several specs. The source is decoded once, and
+     * only if one of them is not in the cache.
+     *
+     * @return outputs, in the order of the specs.
+     */
+    public List<File> get(File source, List<ImageSpec> specs) throws IOException {
+        String digest = digest(source);
+        File[] outputs = new File[specs.size()];
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < outputs.length; i++) {
+            String key = key(digest, specs.get(i));
+            if (touch(key, true)) {
+                outputs[i] = fileOf(key);
+            } else {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return Arrays.asList(outputs);
+        }
+
+        // Decoded on first use, by whichever render comes first. Shared by
+        // requests for the same specs, decoded at the resolution they need.
+        String decodeKey = digest + "|" + specs;
+        Decoded decoded = new Decoded(source, specs);
+        Decoded shared = decodes.putIfAbsent(decodeKey, decoded);
+        try {
+            for (int i : missing) {
+                outputs[i] = render(key(digest, specs.get(i)), specs.get(i),
+                        shared != null ? shared : decoded);
+            }
+        } finally {
+            if (shared == null) {
+                decodes.remove(decodeKey, decoded);
+            }
+        }
+        return Arrays.asList(outputs);
+    }
+
+    /**
+     * Copy the output of a source for one spec to a file, rendered if not
+     * in the cache.
+     */
+    public void copyTo(File source, ImageSpec spec, File target) throws IOException {
+        copyTo(source, Collections.singletonList(spec), Collections.singletonList(target));
+    }
+
+    /**
+     * Copy the outputs of a source for several specs, each to the target at
+     * the same index. An output is not evicted while it is copied, one
+     * evicted in between is rendered again.
+     */
+    public void copyTo(File source, List<ImageSpec> specs, List<File> targets) throws IOException {
+        if (specs.size() != targets.size()) {
+            throw new IllegalArgumentException("specs and targets must have the same size");
+        }
+        String digest = digest(source);
+        get(source, specs);
+        for (int i = 0; i < specs.size(); i++) {
+            String key = key(digest, specs.get(i));
+            while (!pin(key)) {
+                get(source, specs.get(i));
+            }
+            try {
+                Files.copy(fileOf(key).toPath(), targets.get(i).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                unpin(key);
+            }
+        }
+    }
+
+    /**
+     * @return size of the outputs in the cache, in bytes.
+     */
+    public long getTotalBytes() {
+        synchronized (index) {
+            return totalBytes;
+        }
+    }
+
+    public int getEntries() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+
+    /**
+     * @return lookups answered from the cache since it was opened.
+     */
+    public long getHits() {
+        synchronized (index) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return lookups that needed a render since the cache was opened.
+     */
+    public long getMisses() {
+        synchronized (index) {
+            return misses;
+        }
+    }
+
+    /**
+     * Render an output, or wait for the thread already rendering it.
+     */
+    private File render(final String key, final ImageSpec spec, final Decoded decoded)
+            throws IOException {
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                // Rendered by another thread since we looked?
+                if (touch(key, false)) {
+                    return fileOf(key);
+                }
+                File file = fileOf(key);
+                file.getParentFile().mkdirs();
+                // Thumbnailator appends the extension of the format if missing.
+                File temp = File.createTempFile(TEMP_PREFIX, "-" + key, file.getParentFile());
+                try {
+                    renderer.render(decoded.get(), spec, temp);
+                    try {
+                        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    temp.delete();
+                }
+                add(key, file.length());
+                return file;
+            }
+        });
+
+        FutureTask<File> running = renders.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                renders.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Mark an entry as used. An entry whose file is gone, deleted outside of
+     * the cache, is dropped and is a miss.
+     *
+     * @param count true to count the lookup as a hit or a miss.
+     * @return false if not in the cache.
+     */
+    private boolean touch(String key, boolean count) {
+        synchronized (index) {
+            Long size = index.get(key);
+            if (size != null && !fileOf(key).isFile()) {
+                index.remove(key);
+                totalBytes -= size;
+                size = null;
+            }
+            boolean hit = size != null;
+            if (count && hit) {
+                hits++;
+            } else if (count) {
+                misses++;
+            }
+            return hit;
+        }
+    }
+
+    /**
+     * Keep an entry from eviction until unpinned.
+     *
+     * @return false if not in the cache.
+     */
+    private boolean pin(String key) {
+        synchronized (index) {
+            if (!touch(key, false)) {
+                return false;
+            }
+            Integer count = pins.get(key);
+            pins.put(key, count != null ? count + 1 : 1);
+            return true;
+        }
+    }
+
+    private void unpin(String key) {
+        synchronized (index) {
+            int count = pins.get(key);
+            if (count == 1) {
+                pins.remove(key);
+            } else {
+                pins.put(key, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Add an entry, then evict the least recently used ones over budget.
+     * Their files are deleted under the lock, so a file rendered again once
+     * its entry is gone is never deleted by the eviction. Pinned entries are
+     * kept, the cache may stay over budget until the next add.
+     */
+    private void add(String key, long size) {
+        synchronized (index) {
+            Long previous = index.put(key, size);
+            totalBytes += size - (previous != null ? previous : 0);
+            Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                if (eldest.getKey().equals(key) || pins.containsKey(eldest.getKey())) {
+                    continue;
+                }
+                totalBytes -= eldest.getValue();
+                fileOf(eldest.getKey()).delete();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Index the outputs already in the directory, least recently modified
+     * first, and drop temp files of renders that did not complete.
+     */
+    private void load() {
+        List<File> files = new ArrayList<File>();
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File subdir : subdirs) {
+                File[] children = subdir.listFiles();
+                if (children == null) {
+                    continue;
+                }
+                for (File child : children) {
+                    if (child.getName().startsWith(TEMP_PREFIX)) {
+                        child.delete();
+                    } else {
+                        files.add(child);
+                    }
+                }
+            }
+        }
+        final Map<File, Long> times = new HashMap<File, Long>();
+        for (File file : files) {
+            times.put(file, file.lastModified());
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return times.get(a).compareTo(times.get(b));
+            }
+        });
+        for (File file : files) {
+            add(file.getName(), file.length());
+        }
+    }
+
+    /**
+     * SHA-256 of a source, remembered while its size and time do not change.
+     */
+    private String digest(File source) throws IOException {
+        String path = source.getAbsolutePath();
+        String stamp = source.length() + ":" + source.lastModified();
+        synchronized (digests) {
+            String[] known = digests.get(path);
+            if (known != null && known[0].equals(stamp)) {
+                return known[1];
+            }
+        }
+        if (!source.isFile()) {
+            throw new IOException("Source not found: " + source);
+        }
+        String digest = ArchiveManifest.digest(source);
+        synchronized (digests) {
+            digests.put(path, new String[]{stamp, digest});
+        }
+        return digest;
+    }
+
+    /**
+     * Key of an output: hash of the source digest and the spec, with the
+     * extension of the format.
+     */
+    private static String key(String digest, ImageSpec spec) {
+        String id = digest + "|" + spec.getScale() + "|" + spec.getWidth() + "x" + spec.getHeight()
+                + "|" + spec.getFormat() + "|" + spec.getQuality();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(id.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2 + 5);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append('.').append(spec.getFormat()).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Entries are spread over 256 subdirectories, by the first two hex
+     * digits of their key.
+     */
+    private File fileOf(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+
+    /**
+     * Source decoded at most once, when first needed.
+     */
+    private class Decoded {
+
+        private final File source;
+        private final List<ImageSpec> specs;
+        private SourceImage image;
+
+        Decoded(File source, List<ImageSpec> specs) {
+            this.source = source;
+            this.specs = specs;
+        }
+
+        synchronized SourceImage get() throws IOException {
+            if (image == null) {
+                image = renderer.decode(source, specs);
+            }
+            return image;
+        }
+    }
+}
@@ -5,7 +5,16 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
 public class TimeUtil {
+
+    // Default time zone at each call, as SimpleDateFormat
+    private static final IsoDateParser parser = IsoDateParser.followingDefaultZone();
+
     public static Timestamp getTimestamp(String time) {
+        long millis = parser.parse(time);
+        if (millis != IsoDateParser.INVALID) {
+            return new Timestamp(millis);
+        }
+        // Lenient input like 2013-1-5, or bad input
         Timestamp ts = null;
         try {
             SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
@@ -15,5 +24,20 @@ public class TimeUtil {
         }
         return ts;
     }
-}
 
+    /*
+     * Epoch millis of a yyyy-MM-dd date, IsoDateParser.INVALID for bad input, without
+     * exceptions
+     */
+    public static long getMillis(CharSequence time) {
+        return parser.parse(time);
+    }
+
+    /*
+     * Parse a column of yyyy-MM-dd dates into epoch millis, in parallel for large columns.
+     * Bad dates get IsoDateParser.INVALID, returns how many.
+     */
+    public static int getMillis(CharSequence[] column, long[] millis) {
+        return parser.parseAll(column, millis);
+    }
+}
@@ -0,0 +1,481 @@
+package com.msci.moslem.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Calendar;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Random access reader of a ZIP file, the counterpart of
+ * {@link ZipArchiveWriter}.
+ * <p/>
+ * Entries are listed from the central directory, one at a time, without
+ * reading any entry data. The data of an entry is then read with positional
+ * reads on a shared file channel, so several threads can read different
+ * entries at the same time. Listing entries is not thread-safe.
+ * <p/>
+ * Zip64 archives are supported. Encrypted entries can be read when they use
+ * the traditional PKWARE encryption, see {@link Entry#isStrongEncrypted()}
+ * for the others.
+ */
+public class ZipArchiveReader implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset CP437 = Charset.isSupported("IBM437")
+            ? Charset.forName("IBM437") : Charset.forName("ISO-8859-1");
+
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_STRONG_ENCRYPTION = 1 << 6;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int METHOD_AES = 99;
+    private static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+
+    /**
+     * An entry, as described by the central directory.
+     */
+    public static class Entry {
+
+        private final String name;
+        private final int flags, method, dosTime;
+        private final long crc, compressedSize, size, localHeaderOffset;
+        private final int externalAttributes;
+        private final boolean unix;
+
+        Entry(String name, int flags, int method, int dosTime, long crc, long compressedSize,
+              long size, long localHeaderOffset, int externalAttributes, boolean unix) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.externalAttributes = externalAttributes;
+            this.unix = unix;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return ZipArchiveWriter.METHOD_STORED, METHOD_DEFLATED, or another
+         *         method this reader cannot inflate.
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return size of the data in the archive, encryption header included.
+         */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getTime() {
+            return fromDosTime(dosTime);
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public boolean isSymbolicLink() {
+            return unix && ((externalAttributes >>> 16) & 0170000) == 0120000;
+        }
+
+        public boolean isEncrypted() {
+            return (flags & FLAG_ENCRYPTED) != 0;
+        }
+
+        /**
+         * @return true if encrypted with AES or PKWARE strong encryption,
+         *         which this reader cannot decrypt.
+         */
+        public boolean isStrongEncrypted() {
+            return isEncrypted() && ((flags & FLAG_STRONG_ENCRYPTION) != 0 || method == METHOD_AES);
+        }
+
+        /**
+         * @return true if data can be read by {@link ZipArchiveReader#open(Entry, char[])}.
+         */
+        public boolean isSupported() {
+            return !isStrongEncrypted()
+                    && (method == ZipArchiveWriter.METHOD_STORED || method == ZipArchiveWriter.METHOD_DEFLATED);
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long entryCount;
+    private final long centralOffset, centralSize;
+
+    private DataInputStream central;
+    private long entriesRead;
+
+    public ZipArchiveReader(File archive) throws IOException {
+        file = new RandomAccessFile(archive, "r");
+        channel = file.getChannel();
+        try {
+            long length = channel.size();
+            int tail = (int) Math.min(length, 22 + 0xFFFF);
+            ByteBuffer end = ByteBuffer.allocate(tail).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(end, length - tail);
+
+            // End of central directory record, behind an optional comment.
+            int eocd = -1;
+            for (int i = tail - 22; i >= 0; i--) {
+                if (end.getInt(i) == 0x06054b50) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                throw new IOException("Not a zip file: " + archive);
+            }
+
+            long count = end.getShort(eocd + 10) & 0xFFFF;
+            long size = end.getInt(eocd + 12) & ZIP32_LIMIT;
+            long offset = end.getInt(eocd + 16) & ZIP32_LIMIT;
+
+            if (eocd >= 20 && end.getInt(eocd - 20) == 0x07064b50) {
+                // Zip64 end of central directory record.
+                ByteBuffer zip64 = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(zip64, end.getLong(eocd - 20 + 8));
+                if (zip64.getInt(0) != 0x06064b50) {
+                    throw new IOException("Corrupt Zip64 end of central directory: " + archive);
+                }
+                count = zip64.getLong(32);
+                size = zip64.getLong(40);
+                offset = zip64.getLong(48);
+            }
+
+            entryCount = count;
+            centralSize = size;
+            centralOffset = offset;
+            rewind();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of entries in the archive.
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Restart listing entries from the first one.
+     */
+    public void rewind() {
+        central = new DataInputStream(new BufferedInputStream(
+                new ChannelInputStream(centralOffset, centralSize), 64 * 1024));
+        entriesRead = 0;
+    }
+
+    /**
+     * Read the next entry of the central directory.
+     *
+     * @return next entry, or null after the last one.
+     */
+    public Entry nextEntry() throws IOException {
+        if (entriesRead >= entryCount) {
+            return null;
+        }
+        DataInputStream in = central;
+        if (Integer.reverseBytes(in.readInt()) != 0x02014b50) {
+            throw new IOException("Corrupt central directory at entry " + entriesRead);
+        }
+        int madeBy = readShort(in);
+        readShort(in);
+        int flags = readShort(in);
+        int method = readShort(in);
+        int dosTime = Integer.reverseBytes(in.readInt());
+        long crc = Integer.reverseBytes(in.readInt()) & ZIP32_LIMIT;
+        long compressedSize = Integer.reverseBytes(in.readInt()) & ZIP32_LIMIT;
+        long size = Integer.reverseBytes(in.readInt()) & ZIP32_LIMIT;
+        int nameLength = readShort(in);
+        int extraLength = readShort(in);
+        int commentLength = readShort(in);
+        readShort(in);
+        readShort(in);
+        int externalAttributes = Integer.reverseBytes(in.readInt());
+        long offset = Integer.reverseBytes(in.readInt()) & ZIP32_LIMIT;
+
+        byte[] name = new byte[nameLength];
+        in.readFully(name);
+        byte[] extra = new byte[extraLength];
+        in.readFully(extra);
+        skipFully(in, commentLength);
+
+        // Zip64 extra field, holding the values that did not fit.
+        ByteBuffer bb = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        while (bb.remaining() >= 4) {
+            int id = bb.getShort() & 0xFFFF;
+            int length = bb.getShort() & 0xFFFF;
+            int next = Math.min(bb.limit(), bb.position() + length);
+            if (id == 0x0001) {
+                if (size == ZIP32_LIMIT && bb.position() + 8 <= next) {
+                    size = bb.getLong();
+                }
+                if (compressedSize == ZIP32_LIMIT && bb.position() + 8 <= next) {
+                    compressedSize = bb.getLong();
+                }
+                if (offset == ZIP32_LIMIT && bb.position() + 8 <= next) {
+                    offset = bb.getLong();
+                }
+            }
+            bb.position(next);
+        }
+
+        entriesRead++;
+        return new Entry(decodeName(name, flags),
+                flags, method, dosTime, crc, compressedSize, size, offset,
+                externalAttributes, (madeBy >>> 8) == 3);
+    }
+
+    /**
+     * @return offset of the data of an entry, behind its local header.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, entry.localHeaderOffset);
+        if (header.getInt(0) != 0x04034b50) {
+            throw new IOException("Corrupt local header of " + entry.name);
+        }
+        return entry.localHeaderOffset + 30 + (header.getShort(26) & 0xFFFF)
+                + (header.getShort(28) & 0xFFFF);
+    }
+
+    /**
+     * Open the data of an entry as stored: compressed, and encrypted if it
+     * is. Thread-safe.
+     */
+    public InputStream openRaw(Entry entry) throws IOException {
+        return new ChannelInputStream(getDataOffset(entry), entry.compressedSize);
+    }
+
+    /**
+     * Open the uncompressed data of an entry. Thread-safe. The CRC is not
+     * checked, callers compare it with {@link Entry#getCrc()}.
+     *
+     * @param password password of encrypted entries, may be null otherwise.
+     * @throws IOException entry not supported, or wrong password.
+     */
+    public InputStream open(Entry entry, char[] password) throws IOException {
+        if (!entry.isSupported()) {
+            throw new IOException("Unsupported compression or encryption: " + entry.name);
+        }
+        InputStream in = openRaw(entry);
+        if (entry.isEncrypted()) {
+            if (password == null) {
+                throw new IOException("Password required: " + entry.name);
+            }
+            ZipCrypto crypto = new ZipCrypto(password);
+            byte[] header = new byte[ZipCrypto.HEADER_SIZE];
+            readFully(in, header);
+            // With a data descriptor the check byte may come from the time.
+            boolean valid = (entry.flags & 8) != 0
+                    ? checkHeader(crypto, header, entry)
+                    : crypto.checkHeader(header, 0, entry.crc);
+            if (!valid) {
+                throw new IOException("Wrong password: " + entry.name);
+            }
+            in = new DecryptInputStream(in, crypto);
+        }
+        if (entry.method == ZipArchiveWriter.METHOD_DEFLATED) {
+            in = new InflaterInputStream(in, new Inflater(true), 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    inf.end();
+                    super.close();
+                }
+            };
+        }
+        return in;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Names are UTF-8 when flagged so. Many tools write UTF-8 without the
+     * flag, so unflagged names that are valid UTF-8 are taken as such, like
+     * java.util.zip does, and as CP437 otherwise.
+     */
+    private static String decodeName(byte[] name, int flags) {
+        if ((flags & FLAG_UTF8) != 0) {
+            return new String(name, UTF8);
+        }
+        try {
+            return UTF8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(name)).toString();
+        } catch (CharacterCodingException e) {
+            return new String(name, CP437);
+        }
+    }
+
+    private static boolean checkHeader(ZipCrypto crypto, byte[] header, Entry entry) {
+        crypto.decrypt(header, 0, ZipCrypto.HEADER_SIZE);
+        byte check = header[ZipCrypto.HEADER_SIZE - 1];
+        return check == (byte) (entry.crc >>> 24) || check == (byte) (entry.dosTime >>> 8);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b) throws IOException {
+        int n = 0;
+        while (n < b.length) {
+            int read = in.read(b, n, b.length - n);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            n += read;
+        }
+    }
+
+    private static int readShort(DataInputStream in) throws IOException {
+        return Short.reverseBytes(in.readShort()) & 0xFFFF;
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * MS-DOS date and time, in the local time zone, to milliseconds.
+     */
+    static long fromDosTime(int dosTime) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(((dosTime >>> 25) & 0x7F) + 1980, ((dosTime >>> 21) & 0x0F) - 1,
+                (dosTime >>> 16) & 0x1F, (dosTime >>> 11) & 0x1F, (dosTime >>> 5) & 0x3F,
+                (dosTime & 0x1F) * 2);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Stream over a range of the archive, with positional reads.
+     */
+    private class ChannelInputStream extends InputStream {
+
+        private long position;
+        private final long end;
+
+        ChannelInputStream(long position, long length) {
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Archive truncated");
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+
+    private static class DecryptInputStream extends FilterInputStream {
+
+        private final ZipCrypto crypto;
+
+        DecryptInputStream(InputStream in, ZipCrypto crypto) {
+            super(in);
+            this.crypto = crypto;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                crypto.decrypt(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] b = new byte[(int) Math.min(n, 8192)];
+            return Math.max(0, read(b, 0, b.length));
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.msci.moslem.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+
+/**
+ * Low-level writer of a standard ZIP file, taking entry data already
+ * compressed (and encrypted if needed). This is what lets entries be deflated
+ * on other threads and still be written in order into a single archive.
+ * <p/>
+ * The output is a regular file: local headers are written with placeholder
+ * CRC and sizes, then patched once the entry is complete, so no data
+ * descriptors are needed. Zip64 records are added when sizes, offsets or the
+ * number of entries exceed the classic format. Central directory records are
+ * spooled to a temporary file, so memory use does not grow with the number of
+ * entries.
+ * <p/>
+ * Not thread-safe, one thread writes the archive.
+ */
+public class ZipArchiveWriter implements Closeable {
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+    private static final int ENTRIES_LIMIT = 0xFFFF;
+
+    /**
+     * Above this size hint, the local header gets a Zip64 extra field in case
+     * the entry ends up larger than 4 GB.
+     */
+    private static final long ZIP64_LOCAL_THRESHOLD = 0xFF000000L;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long position;
+
+    private final File centralFile;
+    private final DataOutputStream central;
+    private long entries;
+
+    // Current entry.
+    private boolean inEntry;
+    private long entryOffset;
+    private boolean entryZip64;
+    private int entryMethod, entryFlags, entryTime, entryAttributes;
+    private byte[] entryName;
+    private long entryWritten;
+
+    public ZipArchiveWriter(File output) throws IOException {
+        this(output, 256 * 1024);
+    }
+
+    /**
+     * @param output     archive to create, replaced if it exists.
+     * @param bufferSize size of the write buffer.
+     */
+    public ZipArchiveWriter(File output, int bufferSize) throws IOException {
+        file = new RandomAccessFile(output, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        centralFile = File.createTempFile("zipcd", ".tmp", output.getAbsoluteFile().getParentFile());
+        central = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(centralFile), 64 * 1024));
+    }
+
+    /**
+     * Start a file entry. Its data follows with {@link #write(byte[], int, int)},
+     * then {@link #closeEntry(long, long, long)}.
+     *
+     * @param name      name in the archive, with '/' as separator.
+     * @param time      last modification time, in milliseconds.
+     * @param method    METHOD_STORED or METHOD_DEFLATED.
+     * @param encrypted true if data is encrypted with {@link ZipCrypto}.
+     * @param sizeHint  expected uncompressed size, to decide on Zip64.
+     */
+    public void putEntry(String name, long time, int method, boolean encrypted,
+                         long sizeHint) throws IOException {
+        startEntry(name, time, method, encrypted ? FLAG_ENCRYPTED : 0,
+                sizeHint > ZIP64_LOCAL_THRESHOLD, 0100644 << 16);
+    }
+
+    /**
+     * Add a directory entry. A '/' is appended to the name if missing.
+     */
+    public void putDirectory(String name, long time) throws IOException {
+        if (!name.endsWith("/")) {
+            name = name + "/";
+        }
+        // Unix mode plus MS-DOS directory attribute.
+        startEntry(name, time, METHOD_STORED, 0, false, (040755 << 16) | 0x10);
+        closeEntry(0, 0, 0);
+    }
+
+    /**
+     * Add a symbolic link entry, Info-ZIP style: the data is the link target.
+     */
+    public void putSymbolicLink(String name, long time, String target) throws IOException {
+        byte[] data = target.getBytes(UTF8);
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(data, 0, data.length);
+        startEntry(name, time, METHOD_STORED, 0, false, 0120777 << 16);
+        write(data, 0, data.length);
+        closeEntry(crc.getValue(), data.length, data.length);
+    }
+
+    /**
+     * Write data of the current entry, as stored in the archive.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!inEntry) {
+            throw new IllegalStateException("No entry started");
+        }
+        writeBytes(b, off, len);
+        entryWritten += len;
+    }
+
+    /**
+     * Finish the current entry.
+     *
+     * @param crc            CRC-32 of the uncompressed data.
+     * @param compressedSize size of the data written, encryption header
+     *                       included.
+     * @param size           uncompressed size.
+     */
+    public void closeEntry(long crc, long compressedSize, long size) throws IOException {
+        if (!inEntry) {
+            throw new IllegalStateException("No entry started");
+        }
+        if (compressedSize != entryWritten) {
+            throw new IOException("Entry " + new String(entryName, UTF8) + ": "
+                    + entryWritten + " bytes written, " + compressedSize + " declared");
+        }
+        if (!entryZip64 && (size >= ZIP32_LIMIT || compressedSize >= ZIP32_LIMIT)) {
+            throw new IOException("Entry " + new String(entryName, UTF8)
+                    + " is larger than 4 GB but was not started as Zip64");
+        }
+
+        // Patch CRC and sizes of the local header.
+        flush();
+        ByteBuffer patch = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        patch.putInt((int) crc);
+        if (entryZip64) {
+            patch.putInt((int) ZIP32_LIMIT).putInt((int) ZIP32_LIMIT);
+        } else {
+            patch.putInt((int) compressedSize).putInt((int) size);
+        }
+        patch.flip();
+        writeAt(patch, entryOffset + 14);
+        if (entryZip64) {
+            patch = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            patch.putLong(size).putLong(compressedSize);
+            patch.flip();
+            writeAt(patch, entryOffset + 30 + entryName.length + 4);
+        }
+
+        writeCentralRecord(crc, compressedSize, size);
+        inEntry = false;
+    }
+
+    /**
+     * @return number of entries written so far.
+     */
+    public long getEntryCount() {
+        return entries;
+    }
+
+    /**
+     * Write the central directory and close the archive.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (inEntry) {
+                throw new IOException("Entry not closed");
+            }
+            central.close();
+
+            long centralOffset = position;
+            long centralSize = centralFile.length();
+            flush();
+            FileChannel source = new RandomAccessFile(centralFile, "r").getChannel();
+            try {
+                long copied = 0;
+                while (copied < centralSize) {
+                    copied += source.transferTo(copied, centralSize - copied, channel);
+                }
+            } finally {
+                source.close();
+            }
+            position += centralSize;
+            channel.position(position);
+
+            if (entries >= ENTRIES_LIMIT || centralOffset >= ZIP32_LIMIT
+                    || centralSize >= ZIP32_LIMIT) {
+                long zip64EndOffset = position;
+                // Zip64 end of central directory record.
+                putInt(0x06064b50);
+                putLong(44);
+                putShort(45);
+                putShort(45);
+                putInt(0);
+                putInt(0);
+                putLong(entries);
+                putLong(entries);
+                putLong(centralSize);
+                putLong(centralOffset);
+                // Zip64 end of central directory locator.
+                putInt(0x07064b50);
+                putInt(0);
+                putLong(zip64EndOffset);
+                putInt(1);
+            }
+
+            // End of central directory record.
+            putInt(0x06054b50);
+            putShort(0);
+            putShort(0);
+            putShort((int) Math.min(entries, ENTRIES_LIMIT));
+            putShort((int) Math.min(entries, ENTRIES_LIMIT));
+            putInt((int) Math.min(centralSize, ZIP32_LIMIT));
+            putInt((int) Math.min(centralOffset, ZIP32_LIMIT));
+            putShort(0);
+            flush();
+        } finally {
+            central.close();
+            centralFile.delete();
+            file.close();
+        }
+    }
+
+    private void startEntry(String name, long time, int method, int flags,
+                            boolean zip64, int attributes) throws IOException {
+        if (inEntry) {
+            throw new IllegalStateException("Previous entry not closed");
+        }
+        entryName = name.getBytes(UTF8);
+        entryMethod = method;
+        entryFlags = flags | (isAscii(name) ? 0 : FLAG_UTF8);
+        entryTime = toDosTime(time);
+        entryZip64 = zip64;
+        entryAttributes = attributes;
+        entryOffset = position;
+        entryWritten = 0;
+        inEntry = true;
+
+        putInt(0x04034b50);
+        putShort(zip64 ? 45 : 20);
+        putShort(entryFlags);
+        putShort(method);
+        putInt(entryTime);
+        // CRC and sizes, patched by closeEntry().
+        putInt(0);
+        putInt(zip64 ? (int) ZIP32_LIMIT : 0);
+        putInt(zip64 ? (int) ZIP32_LIMIT : 0);
+        putShort(entryName.length);
+        putShort(zip64 ? 20 : 0);
+        writeBytes(entryName, 0, entryName.length);
+        if (zip64) {
+            putShort(0x0001);
+            putShort(16);
+            putLong(0);
+            putLong(0);
+        }
+    }
+
+    private void writeCentralRecord(long crc, long compressedSize, long size)
+            throws IOException {
+        boolean sizeOverflow = size >= ZIP32_LIMIT;
+        boolean compressedOverflow = compressedSize >= ZIP32_LIMIT;
+        boolean offsetOverflow = entryOffset >= ZIP32_LIMIT;
+        int extraLength = (sizeOverflow ? 8 : 0) + (compressedOverflow ? 8 : 0)
+                + (offsetOverflow ? 8 : 0);
+        boolean zip64 = extraLength > 0;
+
+        DataOutputStream out = central;
+        out.writeInt(Integer.reverseBytes(0x02014b50));
+        // Made by Unix, so readers use the Unix mode of the attributes.
+        out.writeShort(Short.reverseBytes((short) ((3 << 8) | (zip64 ? 45 : 20))));
+        out.writeShort(Short.reverseBytes((short) (zip64 || entryZip64 ? 45 : 20)));
+        out.writeShort(Short.reverseBytes((short) entryFlags));
+        out.writeShort(Short.reverseBytes((short) entryMethod));
+        out.writeInt(Integer.reverseBytes(entryTime));
+        out.writeInt(Integer.reverseBytes((int) crc));
+        out.writeInt(Integer.reverseBytes((int) (compressedOverflow ? ZIP32_LIMIT : compressedSize)));
+        out.writeInt(Integer.reverseBytes((int) (sizeOverflow ? ZIP32_LIMIT : size)));
+        out.writeShort(Short.reverseBytes((short) entryName.length));
+        out.writeShort(Short.reverseBytes((short) (zip64 ? 4 + extraLength : 0)));
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeInt(Integer.reverseBytes(entryAttributes));
+        out.writeInt(Integer.reverseBytes((int) (offsetOverflow ? ZIP32_LIMIT : entryOffset)));
+        out.write(entryName);
+        if (zip64) {
+            out.writeShort(Short.reverseBytes((short) 0x0001));
+            out.writeShort(Short.reverseBytes((short) extraLength));
+            if (sizeOverflow) {
+                out.writeLong(Long.reverseBytes(size));
+            }
+            if (compressedOverflow) {
+                out.writeLong(Long.reverseBytes(compressedSize));
+            }
+            if (offsetOverflow) {
+                out.writeLong(Long.reverseBytes(entryOffset));
+            }
+        }
+        entries++;
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+            position += n;
+        }
+    }
+
+    private void putShort(int value) throws IOException {
+        ensure(2);
+        buffer.putShort((short) value);
+        position += 2;
+    }
+
+    private void putInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+        position += 4;
+    }
+
+    private void putLong(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+        position += 8;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void writeAt(ByteBuffer data, long at) throws IOException {
+        while (data.hasRemaining()) {
+            at += channel.write(data, at);
+        }
+    }
+
+    private static boolean isAscii(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * MS-DOS date and time of the local time zone, as stored in ZIP headers.
+     */
+    static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+}
@@ -0,0 +1,99 @@
+package com.msci.moslem.util;
+
+import java.security.SecureRandom;
+
+/**
+ * Traditional PKWARE zip encryption (Zip4J's ENC_METHOD_STANDARD). One
+ * instance encrypts or decrypts one entry: the keys change with every byte,
+ * so the data must go through in order.
+ */
+public final class ZipCrypto {
+
+    /**
+     * Size of the encryption header in front of the entry data.
+     */
+    public static final int HEADER_SIZE = 12;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+            }
+            CRC_TABLE[n] = c;
+        }
+    }
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private int key0 = 0x12345678, key1 = 0x23456789, key2 = 0x34567890;
+
+    /**
+     * @param password password, each char is taken as one byte like Zip4J
+     *                 does.
+     */
+    public ZipCrypto(char[] password) {
+        for (char c : password) {
+            updateKeys((byte) c);
+        }
+    }
+
+    /**
+     * Create the encrypted header of an entry.
+     *
+     * @param crc CRC-32 of the uncompressed entry, its high byte lets readers
+     *            check the password.
+     * @return header to write in front of the encrypted data.
+     */
+    public byte[] createHeader(long crc) {
+        byte[] header = new byte[HEADER_SIZE];
+        RANDOM.nextBytes(header);
+        header[HEADER_SIZE - 1] = (byte) (crc >>> 24);
+        encrypt(header, 0, HEADER_SIZE);
+        return header;
+    }
+
+    /**
+     * Decrypt the header of an entry.
+     *
+     * @return false if the password is wrong.
+     */
+    public boolean checkHeader(byte[] header, int offset, long crc) {
+        decrypt(header, offset, HEADER_SIZE);
+        return header[offset + HEADER_SIZE - 1] == (byte) (crc >>> 24);
+    }
+
+    public void encrypt(byte[] buffer, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            byte plain = buffer[i];
+            buffer[i] = (byte) (plain ^ streamByte());
+            updateKeys(plain);
+        }
+    }
+
+    public void decrypt(byte[] buffer, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            byte plain = (byte) (buffer[i] ^ streamByte());
+            buffer[i] = plain;
+            updateKeys(plain);
+        }
+    }
+
+    private int streamByte() {
+        int temp = (key2 & 0xFFFF) | 2;
+        return (temp * (temp ^ 1)) >>> 8;
+    }
+
+    private void updateKeys(byte b) {
+        key0 = crc32(key0, b);
+        key1 += key0 & 0xFF;
+        key1 = key1 * 134775813 + 1;
+        key2 = crc32(key2, (byte) (key1 >>> 24));
+    }
+
+    private static int crc32(int crc, byte b) {
+        return CRC_TABLE[(crc ^ b) & 0xFF] ^ (crc >>> 8);
+    }
+}